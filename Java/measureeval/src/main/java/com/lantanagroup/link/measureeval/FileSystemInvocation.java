@@ -4,9 +4,9 @@ import ca.uhn.fhir.context.FhirContext;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.core.joran.spi.JoranException;
+import com.lantanagroup.link.measureeval.services.LibraryIndex;
 import com.lantanagroup.link.measureeval.services.MeasureEvaluator;
 import com.lantanagroup.link.measureeval.utils.CqlLogAppender;
-import com.lantanagroup.link.measureeval.utils.CqlUtils;
 import com.lantanagroup.link.measureeval.utils.StreamUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -34,7 +34,7 @@ public class FileSystemInvocation {
     private static final FhirContext fhirContext = FhirContext.forR4Cached();
     private static final Logger logger = LoggerFactory.getLogger(FileSystemInvocation.class);
 
-    private static void configureLogging(Bundle bundle) {
+    private static CqlLogAppender configureLogging(Bundle bundle) {
         try {
             LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
             context.reset();
@@ -44,12 +44,14 @@ public class FileSystemInvocation {
             URL resource = classLoader.getResource("logback-cli.xml");
             if (resource == null) {
                 logger.warn("logback-cli.xml not found in classpath");
-                return;
+                return null;
             }
             configurator.doConfigure(resource);
-            CqlLogAppender.start(context, libraryId -> CqlUtils.getLibrary(bundle, libraryId));
+            // Block rather than drop events, since the CLI exists to produce complete debug output
+            return CqlLogAppender.start(context, LibraryIndex.of(bundle), false);
         } catch (Exception e) {
             logger.warn("Failed to configure logging", e);
+            return null;
         }
     }
 
@@ -185,9 +187,10 @@ public class FileSystemInvocation {
         String start = args[2];
         String end = args[3];
 
+        CqlLogAppender cqlLogAppender = null;
         try {
             Bundle measureBundle = getBundle(measureBundlePath);
-            configureLogging(measureBundle);
+            cqlLogAppender = configureLogging(measureBundle);
             MeasureEvaluator evaluator = MeasureEvaluator.compile(fhirContext, measureBundle, true);
 
             File patientBundleFile = new File(patientBundlePath);
@@ -206,6 +209,10 @@ public class FileSystemInvocation {
         } catch (Exception e) {
             System.err.println("Error occurred while evaluating measure: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            if (cqlLogAppender != null) {
+                cqlLogAppender.stop();
+            }
         }
     }
 }
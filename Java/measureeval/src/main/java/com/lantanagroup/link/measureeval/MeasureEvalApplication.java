@@ -26,7 +26,7 @@ public class MeasureEvalApplication {
         application.run(args);
     }
 
-    @Bean
+    @Bean(destroyMethod = "stop")
     public CqlLogAppender cqlLogAppender(MeasureEvaluatorCache measureEvaluatorCache) {
         LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
         return CqlLogAppender.start(loggerContext, measureEvaluatorCache);
@@ -0,0 +1,43 @@
+package com.lantanagroup.link.measureeval.configs;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Settings for profiling the CQL definitions of measures evaluated by consumers.
+ * These may be changed at runtime; see {@link com.lantanagroup.link.measureeval.controllers.CqlProfilingController}.
+ */
+@Getter
+@Setter
+public class CqlProfilingSettings {
+    /**
+     * The fraction (from 0 to 1) of eligible evaluations that are profiled.
+     */
+    private volatile double sampleRate = 0;
+
+    /**
+     * The measures whose evaluations are eligible for profiling; all measures if empty.
+     */
+    private volatile Set<String> measures = Set.of();
+
+    /**
+     * The facilities whose evaluations are eligible for profiling; all facilities if empty.
+     */
+    private volatile Set<String> facilities = Set.of();
+
+    public boolean shouldProfile(String measureId, String facilityId) {
+        return sampleRate > 0
+                && (measures.isEmpty() || measures.contains(measureId))
+                && (facilities.isEmpty() || facilities.contains(facilityId))
+                && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    public void update(CqlProfilingSettings settings) {
+        setMeasures(settings.getMeasures() == null ? Set.of() : Set.copyOf(settings.getMeasures()));
+        setFacilities(settings.getFacilities() == null ? Set.of() : Set.copyOf(settings.getFacilities()));
+        setSampleRate(settings.getSampleRate());
+    }
+}
@@ -4,14 +4,19 @@ import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.lantanagroup.link.measureeval.records.*;
 import com.lantanagroup.link.measureeval.services.EvaluationRequestedConsumer;
+import com.lantanagroup.link.measureeval.services.MeasureEvalMetrics;
+import com.lantanagroup.link.measureeval.services.MeasureEvaluatorCache;
 import com.lantanagroup.link.measureeval.services.ResourceAcquiredErrorConsumer;
 import com.lantanagroup.link.measureeval.services.ResourceNormalizedConsumer;
 import com.lantanagroup.link.shared.kafka.AsyncListener;
+import com.lantanagroup.link.shared.kafka.FairScheduler;
 import com.lantanagroup.link.shared.kafka.Properties;
 import com.lantanagroup.link.shared.kafka.Topics;
 import io.opentelemetry.instrumentation.kafkaclients.v2_6.TracingConsumerInterceptor;
 import io.opentelemetry.instrumentation.kafkaclients.v2_6.TracingProducerInterceptor;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.CooperativeStickyAssignor;
+import org.apache.kafka.clients.consumer.RangeAssignor;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.header.Headers;
@@ -31,12 +36,16 @@ import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Configuration
 public class KafkaConfig {
+
     private static <T> Map<Pattern, T> byPattern(Map<String, T> map) {
         return map.entrySet().stream().collect(Collectors.toMap(
                 entry -> Pattern.compile(Pattern.quote(entry.getKey())),
@@ -67,7 +76,8 @@ public class KafkaConfig {
                 Topics.RESOURCE_NORMALIZED_RETRY, new StringDeserializer(),
                 Topics.EVALUATION_REQUESTED, new StringDeserializer(),
                 Topics.EVALUATION_REQUESTED_ERROR, new StringDeserializer(),
-                Topics.EVALUATION_REQUESTED_RETRY, new StringDeserializer());
+                Topics.EVALUATION_REQUESTED_RETRY, new StringDeserializer(),
+                Topics.MEASURE_DEFINITION_CHANGED, new StringDeserializer());
         return new ErrorHandlingDeserializer<>(
                 new DelegatingByTopicDeserializer(byPattern(deserializers), new StringDeserializer()));
     }
@@ -104,6 +114,10 @@ public class KafkaConfig {
                         .ignoreTypeHeaders()
                         .typeResolver(KafkaConfig::resolveType),
                 Topics.EVALUATION_REQUESTED_RETRY, new JsonDeserializer<>(EvaluationRequested.class, objectMapper)
+                        .trustedPackages("*")
+                        .ignoreTypeHeaders()
+                        .typeResolver(KafkaConfig::resolveType),
+                Topics.MEASURE_DEFINITION_CHANGED, new JsonDeserializer<>(MeasureDefinitionChanged.class, objectMapper)
                         .trustedPackages("*")
                         .ignoreTypeHeaders()
                         .typeResolver(KafkaConfig::resolveType));
@@ -123,6 +137,7 @@ public class KafkaConfig {
             case Topics.EVALUATION_REQUESTED -> new ObjectMapper().constructType(EvaluationRequested.class);
             case Topics.EVALUATION_REQUESTED_ERROR -> new ObjectMapper().constructType(EvaluationRequested.class);
             case Topics.EVALUATION_REQUESTED_RETRY -> new ObjectMapper().constructType(EvaluationRequested.class);
+            case Topics.MEASURE_DEFINITION_CHANGED -> new ObjectMapper().constructType(MeasureDefinitionChanged.class);
             default -> new ObjectMapper().constructType(Object.class);
         };
     }
@@ -135,6 +150,11 @@ public class KafkaConfig {
             Deserializer<?> valueDeserializer) {
         Map<String, Object> consumerProperties = properties.buildConsumerProperties(sslBundles.getIfAvailable());
         consumerProperties.put(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, TracingConsumerInterceptor.class.getName());
+        // Cooperative rebalancing revokes only the partitions that move; the eager fallback allows rolling upgrades
+        // from eager-only instances, and can be removed via configuration once none remain
+        consumerProperties.putIfAbsent(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, List.of(
+                CooperativeStickyAssignor.class.getName(),
+                RangeAssignor.class.getName()));
         return new DefaultKafkaConsumerFactory<>(consumerProperties, keyDeserializer, valueDeserializer);
     }
 
@@ -163,6 +183,7 @@ public class KafkaConfig {
                 ResourceEvaluated.class, new JsonSerializer<>(objectMapper.constructType(ResourceEvaluated.class), objectMapper).noTypeInfo(),
                 AbstractResourceRecord.class, new JsonSerializer<>(objectMapper.constructType(AbstractResourceRecord.class), objectMapper).noTypeInfo(),
                 EvaluationRequested.class, new JsonSerializer<>(objectMapper.constructType(EvaluationRequested.class), objectMapper).noTypeInfo(),
+                MeasureDefinitionChanged.class, new JsonSerializer<>(objectMapper.constructType(MeasureDefinitionChanged.class), objectMapper).noTypeInfo(),
                 String.class, new StringSerializer(),
                 byte[].class, new ByteArraySerializer(),
                 LinkedHashMap.class, new JsonSerializer<>(objectMapper.constructType(LinkedHashMap.class), objectMapper).noTypeInfo()
@@ -227,6 +248,17 @@ public class KafkaConfig {
     }
 
 
+    /**
+     * Shared by all consumers, so that their records compete for the same threads by priority.
+     */
+    @Bean
+    public FairScheduler consumerScheduler(LinkConfig linkConfig, MeasureEvalMetrics measureEvalMetrics) {
+        FairScheduler scheduler = new FairScheduler(
+                "consumer", linkConfig.getConsumerScheduling(), measureEvalMetrics::QueueWait);
+        measureEvalMetrics.ObserveQueueSizes(scheduler::getQueueSizes);
+        return scheduler;
+    }
+
     @Bean
     public ConcurrentMessageListenerContainer<String, EvaluationRequested> evaluationRequestedContainer(
             ConcurrentKafkaListenerContainerFactory<String, EvaluationRequested> factory,
@@ -248,6 +280,41 @@ public class KafkaConfig {
         return getAsyncListenerContainer(factory, consumer, Topics.RESOURCE_NORMALIZED);
     }
 
+    /**
+     * Every instance consumes every measure definition change, so each instance subscribes to the topic in a consumer
+     * group of its own, starting from the ends of its partitions, and commits no offsets. The group's assignment follows
+     * the topic as partitions are added. Changes made before an instance starts are irrelevant to it, since it compiles
+     * current measure definitions.
+     */
+    @Bean
+    @SuppressWarnings("unchecked")
+    public KafkaMessageListenerContainer<String, MeasureDefinitionChanged> measureDefinitionChangedContainer(
+            ConsumerFactory<?, ?> consumerFactory,
+            Deserializer<?> keyDeserializer,
+            Deserializer<?> valueDeserializer,
+            MeasureEvaluatorCache evaluatorCache) {
+        Map<String, Object> consumerProperties = new HashMap<>(consumerFactory.getConfigurationProperties());
+        String groupId = Objects.toString(consumerProperties.get(ConsumerConfig.GROUP_ID_CONFIG), "measureeval");
+        consumerProperties.put(ConsumerConfig.GROUP_ID_CONFIG,
+                String.format("%s-%s-%s", groupId, Topics.MEASURE_DEFINITION_CHANGED, UUID.randomUUID()));
+        consumerProperties.remove(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG);
+        consumerProperties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
+        consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        ConsumerFactory<String, MeasureDefinitionChanged> instanceConsumerFactory = new DefaultKafkaConsumerFactory<>(
+                consumerProperties,
+                (Deserializer<String>) keyDeserializer,
+                (Deserializer<MeasureDefinitionChanged>) valueDeserializer);
+        ContainerProperties containerProperties = new ContainerProperties(Topics.MEASURE_DEFINITION_CHANGED);
+        // Records are never acknowledged, so the group holds no offsets and is removed once the instance leaves it
+        containerProperties.setAckMode(ContainerProperties.AckMode.MANUAL);
+        containerProperties.setMessageListener((MessageListener<String, MeasureDefinitionChanged>) record -> {
+            if (record.value() != null) {
+                evaluatorCache.refresh(record.key(), record.value().getVersion());
+            }
+        });
+        return new KafkaMessageListenerContainer<>(instanceConsumerFactory, containerProperties);
+    }
+
     private <K, V> ConcurrentMessageListenerContainer<K, V> getAsyncListenerContainer(
             ConcurrentKafkaListenerContainerFactory<K, V> factory,
             AsyncListener<?, ?> listener,
@@ -256,7 +323,14 @@ public class KafkaConfig {
         ContainerProperties containerProperties = container.getContainerProperties();
         containerProperties.setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
         containerProperties.setAsyncAcks(true);
+        // The container waits for every record from a poll to be acknowledged before polling again
+        java.util.Properties consumerProperties = new java.util.Properties();
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, listener.getMaxPollRecords());
+        containerProperties.setKafkaConsumerProperties(consumerProperties);
         containerProperties.setMessageListener(listener);
+        containerProperties.setConsumerRebalanceListener(listener);
+        // Allow revoked partitions to drain before the container gives up on stopping its consumer
+        containerProperties.setShutdownTimeout(listener.getDrainTimeout().plusSeconds(5).toMillis());
         return container;
     }
 }
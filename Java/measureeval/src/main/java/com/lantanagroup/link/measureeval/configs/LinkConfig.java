@@ -1,12 +1,19 @@
 package com.lantanagroup.link.measureeval.configs;
 
+import com.lantanagroup.link.shared.kafka.SchedulingSettings;
 import lombok.Getter;
 import lombok.Setter;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.ResourceType;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.function.Predicate;
 
 @Getter
@@ -16,6 +23,23 @@ import java.util.function.Predicate;
 public class LinkConfig {
     private String reportabilityPredicate;
     private boolean cqlDebug = false;
+    private Duration debugEvaluatorIdleTimeout = Duration.ofMinutes(10);
+    private Duration resourceRetention;
+    private boolean compressResources = false;
+    private int resourceCompressionLevel = 3;
+    private DataSize resourceCompressionTrainingSize = DataSize.ofMegabytes(8);
+    private DataSize resourceCompressionDictionarySize = DataSize.ofKilobytes(112);
+    private Set<ResourceType> sharedResourceTypes = EnumSet.noneOf(ResourceType.class);
+    private int sharedResourceCacheSize = 1000;
+    private DataSize valueSetCacheSize = DataSize.ofMegabytes(256);
+    private DataSize evaluatorCacheSize = DataSize.ofGigabytes(1);
+    private Path evaluatorSnapshotDirectory;
+    private SchedulingSettings consumerScheduling = new SchedulingSettings();
+    private Duration evaluationBudget;
+    private CqlProfilingSettings cqlProfiling = new CqlProfilingSettings();
+    private int bulkEvaluationThreads = Runtime.getRuntime().availableProcessors();
+    private DataSize bulkEvaluationMaxRequestSize = DataSize.ofMegabytes(256);
+    private Duration bulkEvaluationTimeout = Duration.ofMinutes(10);
 
     @Bean
     @SuppressWarnings("unchecked")
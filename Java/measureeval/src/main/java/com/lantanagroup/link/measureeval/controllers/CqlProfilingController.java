@@ -0,0 +1,40 @@
+package com.lantanagroup.link.measureeval.controllers;
+
+import com.lantanagroup.link.measureeval.configs.CqlProfilingSettings;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import io.swagger.v3.oas.annotations.Operation;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Changes CQL profiling settings at runtime.
+ * Changes apply to this instance only and last until it restarts, after which the configured settings apply again.
+ */
+@RestController
+@RequestMapping("/api/measureeval/cql-profiling")
+@PreAuthorize("hasAuthority('IsLinkAdmin')")
+public class CqlProfilingController {
+    private final CqlProfilingSettings settings;
+
+    public CqlProfilingController(LinkConfig linkConfig) {
+        this.settings = linkConfig.getCqlProfiling();
+    }
+
+    @GetMapping
+    @Operation(summary = "Get CQL profiling settings", tags = {"CQL Profiling"})
+    public CqlProfilingSettings get() {
+        return settings;
+    }
+
+    @PutMapping
+    @Operation(summary = "Update CQL profiling settings", tags = {"CQL Profiling"})
+    public CqlProfilingSettings put(@RequestBody CqlProfilingSettings settings) {
+        if (settings.getSampleRate() < 0 || settings.getSampleRate() > 1) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Sample rate must be between 0 and 1");
+        }
+        this.settings.update(settings);
+        return this.settings;
+    }
+}
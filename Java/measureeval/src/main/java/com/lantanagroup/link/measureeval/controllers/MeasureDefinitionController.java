@@ -1,43 +1,59 @@
 package com.lantanagroup.link.measureeval.controllers;
 
-import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
 import com.fasterxml.jackson.annotation.JsonView;
 import com.lantanagroup.link.measureeval.entities.MeasureDefinition;
+import com.lantanagroup.link.measureeval.records.MeasureDefinitionChanged;
 import com.lantanagroup.link.measureeval.repositories.MeasureDefinitionRepository;
+import com.lantanagroup.link.measureeval.services.BulkEvaluateMeasureService;
+import com.lantanagroup.link.measureeval.services.LibraryIndex;
 import com.lantanagroup.link.measureeval.services.MeasureDefinitionBundleValidator;
 import com.lantanagroup.link.measureeval.services.MeasureEvaluator;
 import com.lantanagroup.link.measureeval.services.MeasureEvaluatorCache;
 import com.lantanagroup.link.measureeval.utils.CqlUtils;
 import com.lantanagroup.link.shared.auth.PrincipalUser;
+import com.lantanagroup.link.shared.kafka.Topics;
 import com.lantanagroup.link.shared.serdes.Views;
 import io.opentelemetry.api.trace.Span;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
+import jakarta.servlet.http.HttpServletResponse;
 import javassist.NotFoundException;
 import org.apache.commons.text.StringEscapeUtils;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.MeasureReport;
-import org.hl7.fhir.r4.model.Parameters;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/api/measureeval/measure-definition")
 @PreAuthorize("hasRole('LinkUser')")
 public class MeasureDefinitionController {
 
+    private static final Duration CHANGE_NOTIFICATION_TIMEOUT = Duration.ofSeconds(10);
+
     private final Logger _logger = LoggerFactory.getLogger(MeasureDefinitionController.class);
     private final MeasureDefinitionRepository repository;
     private final MeasureDefinitionBundleValidator bundleValidator;
     private final MeasureEvaluatorCache evaluatorCache;
+    private final BulkEvaluateMeasureService bulkEvaluateMeasureService;
+    private final KafkaTemplate<String, MeasureDefinitionChanged> measureDefinitionChangedTemplate;
 
     final String[] DISALLOWED_FIELDS = new String[]{};
     @InitBinder
@@ -48,10 +64,14 @@ public class MeasureDefinitionController {
     public MeasureDefinitionController(
             MeasureDefinitionRepository repository,
             MeasureDefinitionBundleValidator bundleValidator,
-            MeasureEvaluatorCache evaluatorCache){
+            MeasureEvaluatorCache evaluatorCache,
+            BulkEvaluateMeasureService bulkEvaluateMeasureService,
+            KafkaTemplate<String, MeasureDefinitionChanged> measureDefinitionChangedTemplate){
         this.repository = repository;
         this.bundleValidator = bundleValidator;
         this.evaluatorCache = evaluatorCache;
+        this.bulkEvaluateMeasureService = bulkEvaluateMeasureService;
+        this.measureDefinitionChangedTemplate = measureDefinitionChangedTemplate;
     }
 
     @GetMapping
@@ -105,8 +125,26 @@ public class MeasureDefinitionController {
             return _entity;
         });
         entity.setBundle(bundle);
-        repository.save(entity);
-        evaluatorCache.remove(id);
+        evaluatorCache.translate(entity);
+        entity = repository.save(entity);
+
+        // Recompile in the background on this and every other instance; cached evaluators serve until then
+        evaluatorCache.refresh(id, entity.getVersion());
+        MeasureDefinitionChanged changed = new MeasureDefinitionChanged();
+        changed.setVersion(entity.getVersion());
+        try {
+            measureDefinitionChangedTemplate.send(new ProducerRecord<>(Topics.MEASURE_DEFINITION_CHANGED, id, changed))
+                    .get(CHANGE_NOTIFICATION_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // Other instances would otherwise keep evaluating the previous version; saving again notifies them
+            _logger.error("Saved version {} of measure definition {}, but failed to notify other instances",
+                    entity.getVersion(), id, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Measure definition saved, but other instances could not be notified of the change; save it again");
+        }
         return entity;
     }
 
@@ -126,11 +164,17 @@ public class MeasureDefinitionController {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid range format");
         }
 
-        // Get the measure definition from the repo by ID
-        MeasureDefinition measureDefinition = repository.findById(measureId).orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND));
+        LibraryIndex libraryIndex = evaluatorCache.getLibraryIndex(measureId);
+        if (libraryIndex == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        Library library = libraryIndex.resolve(libraryId);
+        if (library == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Library not found in measure definition bundle");
+        }
 
         try {
-            return CqlUtils.getCql(measureDefinition.getBundle(), libraryId, range);
+            return CqlUtils.getCql(library, range);
         } catch (NotFoundException e) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage(), e);
         }
@@ -142,7 +186,8 @@ public class MeasureDefinitionController {
     @Parameter(name = "id", description = "The ID of the measure definition", required = true)
     @Parameter(name = "parameters", description = "The parameters to use in the evaluation", required = true)
     @Parameter(name = "debug", description = "Whether to log CQL debugging information during evaluation", required = false)
-    public MeasureReport evaluate(@AuthenticationPrincipal PrincipalUser user, @PathVariable String id, @RequestBody Parameters parameters, @RequestParam(required = false, defaultValue = "false") boolean debug) {
+    @Parameter(name = "profile", description = "Whether to attach the time taken by each CQL definition as a contained Parameters resource", required = false)
+    public MeasureReport evaluate(@AuthenticationPrincipal PrincipalUser user, @PathVariable String id, @RequestBody Parameters parameters, @RequestParam(required = false, defaultValue = "false") boolean debug, @RequestParam(required = false, defaultValue = "false") boolean profile) {
 
         if (user != null){
             Span currentSpan = Span.current();
@@ -150,12 +195,120 @@ public class MeasureDefinitionController {
         }
 
         try {
-            // Ensure that a measure evaluator is cached (so that CQL logging can use it)
-            MeasureEvaluator evaluator = evaluatorCache.get(id);
-            // But recompile the bundle every time because the debug flag may not match what's in the cache
-            return MeasureEvaluator.compileAndEvaluate(FhirContext.forR4(), evaluator.getBundle(), parameters, debug);
+            // Debug evaluators are cached separately so that CQL logging can resolve their libraries
+            MeasureEvaluator evaluator = debug ? evaluatorCache.getDebug(id) : evaluatorCache.get(id);
+            if (evaluator == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+            }
+            MeasureReport measureReport = evaluator.evaluate(parameters);
+            if (profile) {
+                measureReport.addContained(evaluator.profile(parameters).toParameters());
+            }
+            return measureReport;
+        } catch (ResponseStatusException e) {
+            throw e;
         } catch (Exception e) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
         }
     }
+
+    @PostMapping(
+            value = "/{id}/$evaluate-bulk",
+            consumes = {MediaType.APPLICATION_NDJSON_VALUE, "application/fhir+ndjson"},
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @PreAuthorize("hasAuthority('IsLinkAdmin')")
+    @Operation(summary = "Evaluate a measure against multiple patients in an NDJSON request body", tags = {"Measure Definitions"})
+    @Parameter(name = "id", description = "The ID of the measure definition", required = true)
+    @Parameter(name = "periodStart", description = "The start of the measurement period", required = true)
+    @Parameter(name = "periodEnd", description = "The end of the measurement period", required = true)
+    @Parameter(name = "summary", description = "Whether to append a summary MeasureReport with aggregated population counts", required = false)
+    public WebAsyncTask<Void> evaluateBulkNdjson(
+            @AuthenticationPrincipal PrincipalUser user,
+            @PathVariable String id,
+            InputStream body,
+            @RequestParam String periodStart,
+            @RequestParam String periodEnd,
+            @RequestParam(required = false, defaultValue = "false") boolean summary,
+            HttpServletResponse response) {
+
+        if (user != null){
+            Span currentSpan = Span.current();
+            currentSpan.setAttribute("user", user.getEmailAddress());
+        }
+
+        Map<String, Bundle> bundlesByPatientId;
+        try {
+            bundlesByPatientId = bulkEvaluateMeasureService.readNdjson(body);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        return evaluateBulk(id, bundlesByPatientId, periodStart, periodEnd, summary, response);
+    }
+
+    @PostMapping(
+            value = "/{id}/$evaluate-bulk",
+            consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @PreAuthorize("hasAuthority('IsLinkAdmin')")
+    @Operation(summary = "Evaluate a measure against multiple patients in a Bundle request body", tags = {"Measure Definitions"})
+    @Parameter(name = "id", description = "The ID of the measure definition", required = true)
+    @Parameter(name = "periodStart", description = "The start of the measurement period", required = true)
+    @Parameter(name = "periodEnd", description = "The end of the measurement period", required = true)
+    @Parameter(name = "summary", description = "Whether to append a summary MeasureReport with aggregated population counts", required = false)
+    public WebAsyncTask<Void> evaluateBulkBundle(
+            @AuthenticationPrincipal PrincipalUser user,
+            @PathVariable String id,
+            @RequestBody Bundle bundle,
+            @RequestParam String periodStart,
+            @RequestParam String periodEnd,
+            @RequestParam(required = false, defaultValue = "false") boolean summary,
+            HttpServletResponse response) {
+
+        if (user != null){
+            Span currentSpan = Span.current();
+            currentSpan.setAttribute("user", user.getEmailAddress());
+        }
+
+        Map<String, Bundle> bundlesByPatientId;
+        try {
+            bundlesByPatientId = bulkEvaluateMeasureService.groupByPatient(List.of(bundle));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        return evaluateBulk(id, bundlesByPatientId, periodStart, periodEnd, summary, response);
+    }
+
+    /**
+     * Streams results from a task with its own timeout ({@code link.bulk-evaluation-timeout}), so that other
+     * asynchronous requests keep the default timeout.
+     */
+    private WebAsyncTask<Void> evaluateBulk(
+            String id,
+            Map<String, Bundle> bundlesByPatientId,
+            String periodStart,
+            String periodEnd,
+            boolean summary,
+            HttpServletResponse response) {
+        DateTimeType periodStartType;
+        DateTimeType periodEndType;
+        try {
+            periodStartType = new DateTimeType(periodStart);
+            periodEndType = new DateTimeType(periodEnd);
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+
+        MeasureEvaluator evaluator = evaluatorCache.get(id);
+        if (evaluator == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+
+        _logger.info("Evaluating measure {} for {} patients", id, bundlesByPatientId.size());
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        return new WebAsyncTask<>(bulkEvaluateMeasureService.getTimeout().toMillis(), () -> {
+            bulkEvaluateMeasureService.evaluate(
+                    evaluator, periodStartType, periodEndType, bundlesByPatientId, summary, response.getOutputStream());
+            return null;
+        });
+    }
 }
@@ -1,36 +1,121 @@
 package com.lantanagroup.link.measureeval.controllers;
 
+import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
 import com.lantanagroup.link.measureeval.repositories.PatientReportingEvaluationStatusRepository;
+import com.lantanagroup.link.measureeval.services.PatientBundleStreamer;
 import com.lantanagroup.link.measureeval.services.PatientStatusBundler;
+import com.lantanagroup.link.measureeval.services.SharedResourceStore;
 import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
 
 @RestController
 @RequestMapping("/api/measureeval/patient")
 @PreAuthorize("hasRole('LinkUser')")
 public class PatientController {
+    private static final MediaType FHIR_JSON = MediaType.parseMediaType("application/fhir+json");
+    private static final MediaType FHIR_NDJSON = MediaType.parseMediaType("application/fhir+ndjson");
+
     private final PatientReportingEvaluationStatusRepository patientReportingEvaluationStatusRepository;
     private final PatientStatusBundler patientStatusBundler;
+    private final PatientBundleStreamer patientBundleStreamer;
+    private final SharedResourceStore sharedResourceStore;
 
-    public PatientController(PatientReportingEvaluationStatusRepository patientReportingEvaluationStatusRepository, PatientStatusBundler patientStatusBundler) {
+    public PatientController(PatientReportingEvaluationStatusRepository patientReportingEvaluationStatusRepository, PatientStatusBundler patientStatusBundler, PatientBundleStreamer patientBundleStreamer, SharedResourceStore sharedResourceStore) {
         this.patientReportingEvaluationStatusRepository = patientReportingEvaluationStatusRepository;
         this.patientStatusBundler = patientStatusBundler;
+        this.patientBundleStreamer = patientBundleStreamer;
+        this.sharedResourceStore = sharedResourceStore;
     }
 
-    @GetMapping("/{facilityId}/{reportId}/{patientId}")
-    public Bundle getPatientData(@PathVariable String facilityId, @PathVariable String reportId, @PathVariable String patientId) {
+    private PatientReportingEvaluationStatus getPatientStatus(String facilityId, String reportId, String patientId) {
         var patientReportStatus = patientReportingEvaluationStatusRepository.findByFacilityIdAndPatientIdAndReportsReportTrackingId(facilityId, patientId, reportId).orElse(null);
 
         if (patientReportStatus == null) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "facilityId, reportId, or patientId not found");
         }
+        return patientReportStatus;
+    }
 
-        return patientStatusBundler.createBundle(facilityId, patientReportStatus.getCorrelationId());
+    @GetMapping("/{facilityId}/{reportId}/{patientId}")
+    public Bundle getPatientData(@PathVariable String facilityId, @PathVariable String reportId, @PathVariable String patientId) {
+        PatientReportingEvaluationStatus patientStatus = getPatientStatus(facilityId, reportId, patientId);
+        Bundle bundle = patientStatusBundler.createBundle(facilityId, patientStatus.getCorrelationId());
+        if (!bundle.hasEntry() && sharedResourceStore.isExpired(patientStatus)) {
+            throw new ResponseStatusException(HttpStatus.GONE, "Patient data is no longer retained");
+        }
+        return bundle;
+    }
+
+    /**
+     * Streams the same resources as {@link #getPatientData} as stored, without parsing them, either as a Bundle or as
+     * NDJSON. The response is gzip-compressed if the client accepts it, and carries an ETag for conditional requests.
+     */
+    @GetMapping("/{facilityId}/{reportId}/{patientId}/$stream")
+    public ResponseEntity<StreamingResponseBody> streamPatientData(
+            @PathVariable String facilityId,
+            @PathVariable String reportId,
+            @PathVariable String patientId,
+            @RequestParam(value = "format", defaultValue = "bundle") String format,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            WebRequest request) {
+        PatientBundleStreamer.Format _format = switch (format.toLowerCase()) {
+            case "bundle" -> PatientBundleStreamer.Format.BUNDLE;
+            case "ndjson" -> PatientBundleStreamer.Format.NDJSON;
+            default -> throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "format must be bundle or ndjson");
+        };
+        PatientReportingEvaluationStatus patientStatus = getPatientStatus(facilityId, reportId, patientId);
+        String correlationId = patientStatus.getCorrelationId();
+        PatientBundleStreamer.Version version = patientBundleStreamer.getVersion(facilityId, correlationId);
+        if (version == null) {
+            if (sharedResourceStore.isExpired(patientStatus)) {
+                throw new ResponseStatusException(HttpStatus.GONE, "Patient data is no longer retained");
+            }
+            version = new PatientBundleStreamer.Version(0, null);
+        }
+        if (request.checkNotModified(version.getETag())) {
+            return null;
+        }
+        boolean gzip = acceptsGzip(acceptEncoding);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(_format == PatientBundleStreamer.Format.BUNDLE ? FHIR_JSON : FHIR_NDJSON)
+                .eTag(version.getETag())
+                .varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return response.body(outputStream -> {
+            OutputStream out = gzip ? new GZIPOutputStream(outputStream, 65536) : outputStream;
+            BufferedOutputStream buffered = new BufferedOutputStream(out, 65536);
+            patientBundleStreamer.write(facilityId, correlationId, _format, buffered);
+            buffered.flush();
+            if (out instanceof GZIPOutputStream gzipOut) {
+                gzipOut.finish();
+            }
+        });
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length == 1 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
     }
 }
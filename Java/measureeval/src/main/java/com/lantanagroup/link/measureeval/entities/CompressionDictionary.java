@@ -0,0 +1,22 @@
+package com.lantanagroup.link.measureeval.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+
+import java.util.Date;
+
+@Getter
+@Setter
+public class CompressionDictionary {
+    @Id
+    private String id;
+
+    private byte[] dictionary;
+
+    private int sampleCount;
+
+    @CreatedDate
+    private Date createdDate;
+}
@@ -11,6 +11,7 @@ import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.annotation.Version;
 
 import java.util.Date;
+import java.util.List;
 
 @Getter
 @Setter
@@ -22,6 +23,16 @@ public class MeasureDefinition {
     @JsonView(Views.Detail.class)
     private Bundle bundle;
 
+    /**
+     * The ELM translated from the bundle's libraries, which is loaded in place of their CQL when the measure is compiled.
+     */
+    private List<Elm> elm;
+
+    /**
+     * The version of the CQL translator that produced the ELM; ELM from any other version is ignored.
+     */
+    private String elmTranslatorVersion;
+
     @Version
     @JsonView(Views.Summary.class)
     private long version;
@@ -33,4 +44,12 @@ public class MeasureDefinition {
     @LastModifiedDate
     @JsonView(Views.Summary.class)
     private Date modifiedDate;
+
+    @Getter
+    @Setter
+    public static class Elm {
+        private String libraryName;
+        private String libraryVersion;
+        private String content;
+    }
 }
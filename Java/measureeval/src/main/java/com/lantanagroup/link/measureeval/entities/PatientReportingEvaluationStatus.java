@@ -41,6 +41,11 @@ public class PatientReportingEvaluationStatus {
     @Getter
     @Setter
     public static class Report {
+        /**
+         * Uniquely identifies this entry among the status's reports; null for reports stored before it was introduced.
+         */
+        private String entryId;
+
         private String reportType;
         private Date startDate;
         private Date endDate;
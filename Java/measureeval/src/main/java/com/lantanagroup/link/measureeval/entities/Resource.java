@@ -32,6 +32,26 @@ public class Resource {
 
     private IBaseResource resource;
 
+    /**
+     * Zstd-compressed FHIR JSON of the resource, stored in place of {@link #resource} when resource compression is
+     * enabled; see {@code ResourceCompressor}.
+     */
+    private byte[] compressedResource;
+
+    private String compressionDictionaryId;
+
+    /**
+     * The ID of the {@link SharedResource} holding the payload, if it is stored there rather than on this document;
+     * see {@code SharedResourceStore}.
+     */
+    private String sharedResourceId;
+
+    /**
+     * When this resource expires; every resource of a correlation expires at the same time, so that a correlation's
+     * resources are retained or expired as a whole. Null if resources are retained indefinitely.
+     */
+    private Date expireAt;
+
     @CreatedDate
     private Date createdDate;
 
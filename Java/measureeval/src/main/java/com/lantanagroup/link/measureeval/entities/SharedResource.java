@@ -0,0 +1,41 @@
+package com.lantanagroup.link.measureeval.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.springframework.data.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * A resource payload shared by every {@link Resource} at a facility whose content is identical.
+ * The ID is a hash of the facility ID and the resource's FHIR JSON, so documents are immutable once written.
+ */
+@Getter
+@Setter
+public class SharedResource {
+    @Id
+    private String id;
+
+    private String facilityId;
+
+    private ResourceType resourceType;
+
+    private String resourceId;
+
+    private IBaseResource resource;
+
+    private Date createdDate;
+
+    /**
+     * When a {@link Resource} last referenced this payload.
+     */
+    private Date modifiedDate;
+
+    /**
+     * The latest expiration of any {@link Resource} referencing this payload, so that it expires no sooner than its
+     * last referrer.
+     */
+    private Date expireAt;
+}
@@ -0,0 +1,10 @@
+package com.lantanagroup.link.measureeval.records;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class MeasureDefinitionChanged {
+    private long version;
+}
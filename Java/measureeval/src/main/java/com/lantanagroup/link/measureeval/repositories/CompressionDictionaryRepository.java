@@ -0,0 +1,12 @@
+package com.lantanagroup.link.measureeval.repositories;
+
+import com.lantanagroup.link.measureeval.entities.CompressionDictionary;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface CompressionDictionaryRepository extends MongoRepository<CompressionDictionary, String> {
+    Optional<CompressionDictionary> findFirstByOrderByCreatedDateDesc();
+}
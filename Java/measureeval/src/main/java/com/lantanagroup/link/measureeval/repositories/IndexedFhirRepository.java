@@ -0,0 +1,87 @@
+package com.lantanagroup.link.measureeval.repositories;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import lombok.Getter;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory repository of a patient's data that is indexed once and shared by every measure evaluated for the patient;
+ * callers create one per patient and pass it to each evaluation.
+ * When filtering in memory, the CQL engine searches by resource type alone for every retrieve; such searches are answered
+ * from an index by type rather than by searching the repository each time. Each search returns a new bundle, which
+ * callers may modify freely. Writes invalidate the index for their type.
+ */
+public class IndexedFhirRepository extends LinkInMemoryFhirRepository {
+    @Getter
+    private final Bundle bundle;
+    private final Map<String, List<Resource>> resourcesByType = new ConcurrentHashMap<>();
+
+    public IndexedFhirRepository(FhirContext context, Bundle bundle) {
+        super(context, bundle);
+        this.bundle = bundle;
+    }
+
+    // The underlying maps are not thread-safe, and even reads may populate them
+
+    @Override
+    public synchronized <T extends IBaseResource, I extends IIdType> T read(
+            Class<T> resourceType, I id, Map<String, String> headers) {
+        return super.read(resourceType, id, headers);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <B extends IBaseBundle, T extends IBaseResource> B search(
+            Class<B> bundleType,
+            Class<T> resourceType,
+            Map<String, List<IQueryParameterType>> searchParameters,
+            Map<String, String> headers) {
+        if (searchParameters != null && !searchParameters.isEmpty()) {
+            synchronized (this) {
+                return super.search(bundleType, resourceType, searchParameters, headers);
+            }
+        }
+        List<Resource> resources = resourcesByType.get(resourceType.getSimpleName());
+        if (resources == null) {
+            synchronized (this) {
+                resources = resourcesByType.computeIfAbsent(resourceType.getSimpleName(), type ->
+                        ((Bundle) super.search(bundleType, resourceType, searchParameters, headers)).getEntry().stream()
+                                .map(Bundle.BundleEntryComponent::getResource)
+                                .toList());
+            }
+        }
+        Bundle search = new Bundle();
+        search.setType(Bundle.BundleType.SEARCHSET);
+        resources.forEach(resource -> search.addEntry().setResource(resource));
+        return (B) search;
+    }
+
+    @Override
+    public synchronized <T extends IBaseResource> MethodOutcome create(T resource, Map<String, String> headers) {
+        resourcesByType.remove(resource.fhirType());
+        return super.create(resource, headers);
+    }
+
+    @Override
+    public synchronized <T extends IBaseResource> MethodOutcome update(T resource, Map<String, String> headers) {
+        resourcesByType.remove(resource.fhirType());
+        return super.update(resource, headers);
+    }
+
+    @Override
+    public synchronized <T extends IBaseResource, I extends IIdType> MethodOutcome delete(
+            Class<T> resourceType, I id, Map<String, String> headers) {
+        resourcesByType.remove(resourceType.getSimpleName());
+        return super.delete(resourceType, id, headers);
+    }
+}
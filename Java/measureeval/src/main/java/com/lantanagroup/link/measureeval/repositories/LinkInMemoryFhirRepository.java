@@ -1,28 +1,88 @@
 package com.lantanagroup.link.measureeval.repositories;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.lantanagroup.link.measureeval.utils.EvaluationBudget;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.Map;
 
 /**
  * This class extends the InMemoryFhirRepository to provide a transaction method that will update the resources in the repository.
  * This implementation is primarily used to avoid the exception stack trace that is thrown when the InMemoryFhirRepository.transaction method is called by measure eval, but is not implemented
  * in the default InMemoryFhirRepository.
+ * <p>
+ * It may also be layered over a patient's data, which is read and searched, but never written, after this repository's
+ * own resources. This stands in for the engine's additional data, which it would otherwise re-index for each evaluation
+ * and search through a federated repository.
+ * <p>
+ * Every read and search is a checkpoint for the current thread's {@link EvaluationBudget}.
  */
 public class LinkInMemoryFhirRepository extends InMemoryFhirRepository {
     private static final Logger logger = LoggerFactory.getLogger(LinkInMemoryFhirRepository.class);
 
+    private final IndexedFhirRepository patientData;
+
     public LinkInMemoryFhirRepository(FhirContext context) {
         super(context);
+        this.patientData = null;
     }
 
     public LinkInMemoryFhirRepository(FhirContext context, IBaseBundle bundle) {
+        this(context, bundle, null);
+    }
+
+    public LinkInMemoryFhirRepository(FhirContext context, IBaseBundle bundle, IndexedFhirRepository patientData) {
         super(context, bundle);
+        this.patientData = patientData;
+    }
+
+    @Override
+    public <T extends IBaseResource, I extends IIdType> T read(Class<T> resourceType, I id, Map<String, String> headers) {
+        EvaluationBudget.checkpoint();
+        try {
+            return super.read(resourceType, id, headers);
+        } catch (ResourceNotFoundException e) {
+            if (patientData == null) {
+                throw e;
+            }
+            return patientData.read(resourceType, id, headers);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <B extends IBaseBundle, T extends IBaseResource> B search(
+            Class<B> bundleType,
+            Class<T> resourceType,
+            Map<String, List<IQueryParameterType>> searchParameters,
+            Map<String, String> headers) {
+        EvaluationBudget.checkpoint();
+        B own = super.search(bundleType, resourceType, searchParameters, headers);
+        if (patientData == null) {
+            return own;
+        }
+        Bundle ownBundle = (Bundle) own;
+        Bundle patientBundle = (Bundle) patientData.search(bundleType, resourceType, searchParameters, headers);
+        if (!ownBundle.hasEntry()) {
+            return (B) patientBundle;
+        }
+        if (!patientBundle.hasEntry()) {
+            return own;
+        }
+        Bundle merged = new Bundle();
+        merged.setType(Bundle.BundleType.SEARCHSET);
+        ownBundle.getEntry().forEach(entry -> merged.addEntry().setResource(entry.getResource()));
+        patientBundle.getEntry().forEach(entry -> merged.addEntry().setResource(entry.getResource()));
+        return (B) merged;
     }
 
     @Override
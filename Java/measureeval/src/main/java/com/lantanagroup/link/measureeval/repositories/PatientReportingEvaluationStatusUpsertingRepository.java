@@ -8,4 +8,12 @@ public interface PatientReportingEvaluationStatusUpsertingRepository {
     default PatientReportingEvaluationStatus setPatientId(PatientReportingEvaluationStatus entity) {
         return setPatientId(entity.getFacilityId(), entity.getCorrelationId(), entity.getPatientId());
     }
+
+    /**
+     * Writes the patient ID and the reportability of every report in a single update, leaving the rest of the stored
+     * document untouched.
+     * Reports are matched by entry ID, or by position if they were stored without one; the reports of a status are never
+     * added, removed, or reordered after it is created.
+     */
+    void updateReportability(PatientReportingEvaluationStatus entity);
 }
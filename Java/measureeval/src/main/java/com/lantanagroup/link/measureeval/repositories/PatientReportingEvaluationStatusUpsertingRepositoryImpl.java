@@ -3,6 +3,10 @@ package com.lantanagroup.link.measureeval.repositories;
 import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Date;
+import java.util.List;
 
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
@@ -23,4 +27,27 @@ public class PatientReportingEvaluationStatusUpsertingRepositoryImpl implements
                 .withOptions(FindAndModifyOptions.options().returnNew(true))
                 .findAndModifyValue();
     }
+
+    @Override
+    public void updateReportability(PatientReportingEvaluationStatus entity) {
+        Date modifiedDate = new Date();
+        Update update = update("patientId", entity.getPatientId()).set("modifiedDate", modifiedDate);
+        List<PatientReportingEvaluationStatus.Report> reports = entity.getReports();
+        for (int index = 0; index < reports.size(); index++) {
+            PatientReportingEvaluationStatus.Report report = reports.get(index);
+            if (report.getEntryId() == null) {
+                update.set(String.format("reports.%d.reportable", index), report.getReportable());
+                continue;
+            }
+            String identifier = "r" + index;
+            update.set(String.format("reports.$[%s].reportable", identifier), report.getReportable());
+            update.filterArray(where(identifier + ".entryId").is(report.getEntryId()));
+        }
+        mongoOperations.update(PatientReportingEvaluationStatus.class)
+                .matching(query(where("facilityId").is(entity.getFacilityId())
+                        .and("correlationId").is(entity.getCorrelationId())))
+                .apply(update)
+                .first();
+        entity.setModifiedDate(modifiedDate);
+    }
 }
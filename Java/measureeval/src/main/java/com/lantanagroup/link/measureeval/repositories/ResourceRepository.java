@@ -2,11 +2,18 @@ package com.lantanagroup.link.measureeval.repositories;
 
 import com.lantanagroup.link.measureeval.entities.Resource;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Date;
 import java.util.List;
 
 @Repository
 public interface ResourceRepository extends MongoRepository<Resource, String>, ResourceUpsertingRepository {
-    List<Resource> findByFacilityIdAndCorrelationId(String facilityId, String correlationId);
+    /**
+     * Finds a correlation's resources, unless they have expired. Expired resources are deleted in the background, so
+     * they are excluded here rather than returned partially.
+     */
+    @Query("{ 'facilityId': ?0, 'correlationId': ?1, $or: [ { 'expireAt': null }, { 'expireAt': { $gt: ?2 } } ] }")
+    List<Resource> findUnexpiredByFacilityIdAndCorrelationId(String facilityId, String correlationId, Date now);
 }
@@ -0,0 +1,9 @@
+package com.lantanagroup.link.measureeval.repositories;
+
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface SharedResourceRepository extends MongoRepository<SharedResource, String>, SharedResourceUpsertingRepository {
+}
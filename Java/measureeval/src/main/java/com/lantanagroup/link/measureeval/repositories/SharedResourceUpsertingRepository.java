@@ -0,0 +1,10 @@
+package com.lantanagroup.link.measureeval.repositories;
+
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+
+public interface SharedResourceUpsertingRepository {
+    /**
+     * Inserts the entity if no payload with its ID exists; otherwise, only updates its modified date.
+     */
+    void reference(SharedResource entity);
+}
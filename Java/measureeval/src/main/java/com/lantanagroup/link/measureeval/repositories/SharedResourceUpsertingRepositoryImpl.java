@@ -0,0 +1,38 @@
+package com.lantanagroup.link.measureeval.repositories;
+
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Date;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class SharedResourceUpsertingRepositoryImpl implements SharedResourceUpsertingRepository {
+    private final MongoOperations mongoOperations;
+
+    public SharedResourceUpsertingRepositoryImpl(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    @Override
+    public void reference(SharedResource entity) {
+        Date modifiedDate = new Date();
+        Update update = new Update()
+                .setOnInsert("facilityId", entity.getFacilityId())
+                .setOnInsert("resourceType", entity.getResourceType())
+                .setOnInsert("resourceId", entity.getResourceId())
+                .setOnInsert("resource", entity.getResource())
+                .setOnInsert("createdDate", modifiedDate)
+                .set("modifiedDate", modifiedDate);
+        if (entity.getExpireAt() != null) {
+            update.max("expireAt", entity.getExpireAt());
+        }
+        mongoOperations.update(SharedResource.class)
+                .matching(query(where("_id").is(entity.getId())))
+                .apply(update)
+                .upsert();
+        entity.setModifiedDate(modifiedDate);
+    }
+}
@@ -5,9 +5,12 @@ import com.lantanagroup.link.measureeval.entities.Resource;
 import com.lantanagroup.link.measureeval.repositories.ResourceRepository;
 import com.lantanagroup.link.shared.exceptions.ValidationException;
 import com.lantanagroup.link.shared.kafka.AsyncListener;
+import com.lantanagroup.link.shared.kafka.FairScheduler;
 import com.lantanagroup.link.shared.kafka.Headers;
+import com.lantanagroup.link.shared.kafka.Priority;
 import com.lantanagroup.link.shared.kafka.Topics;
 import com.lantanagroup.link.measureeval.entities.QueryType;
+import com.lantanagroup.link.measureeval.entities.ReportableEvent;
 import com.lantanagroup.link.measureeval.records.AbstractResourceRecord;
 import com.lantanagroup.link.measureeval.records.DataAcquisitionRequested;
 import com.lantanagroup.link.measureeval.repositories.PatientReportingEvaluationStatusRepository;
@@ -49,6 +52,7 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
     private final EvaluateMeasureService evaluateMeasureService;
     private final PatientStatusBundler patientStatusBundler;
     private final ResourceEvaluatedProducer resourceEvaluatedProducer;
+    private final SharedResourceStore sharedResourceStore;
 
     public AbstractResourceConsumer (
             ResourceRepository resourceRepository,
@@ -59,8 +63,10 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
             EvaluateMeasureService evaluateMeasureService,
             PatientStatusBundler patientStatusBundler,
             ResourceEvaluatedProducer resourceEvaluatedProducer,
+            SharedResourceStore sharedResourceStore,
+            FairScheduler consumerScheduler,
             ConsumerRecordRecoverer recoverer) {
-        super(recoverer);
+        super(recoverer, consumerScheduler);
         this.resourceRepository = resourceRepository;
         this.patientStatusRepository = patientStatusRepository;
         patientStatusCache = Collections.synchronizedMap(new PassiveExpiringMap<>(1L, TimeUnit.MINUTES));
@@ -70,6 +76,21 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
         this.evaluateMeasureService = evaluateMeasureService;
         this.patientStatusBundler = patientStatusBundler;
         this.resourceEvaluatedProducer = resourceEvaluatedProducer;
+        this.sharedResourceStore = sharedResourceStore;
+    }
+
+    /**
+     * Prioritizes INITIAL acquisition (whose tails gate supplemental acquisition) over SUPPLEMENTAL, and both over
+     * ADHOC runs.
+     * Every record for a patient shares a priority, so a tail is never processed ahead of that patient's resources.
+     */
+    @Override
+    protected Priority getPriority(ConsumerRecord<String, T> record) {
+        T value = record.value();
+        if (value == null || value.getReportableEvent() == ReportableEvent.ADHOC) {
+            return Priority.LOW;
+        }
+        return value.getQueryType() == QueryType.INITIAL ? Priority.HIGH : Priority.NORMAL;
     }
 
     @Override
@@ -130,27 +151,35 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
                 return _patientStatus;
             });
 
+            // The INITIAL tail persists the patient ID along with reportability, so there is no need to write it here
+            boolean deferPatientId = value.isAcquisitionComplete() && value.getQueryType() == QueryType.INITIAL;
             if (patientStatus.getPatientId() == null) {
                 logger.trace("Setting patient status patient ID: {}", value.getPatientId());
                 patientStatus.setPatientId(value.getPatientId());
 
-                taskStopWatch.start("setPatientStatusPatientId");
-                patientStatus = patientStatusRepository.setPatientId(patientStatus);
-                taskStopWatch.stop();
+                if (!deferPatientId) {
+                    taskStopWatch.start("setPatientId");
+                    patientStatus = patientStatusRepository.setPatientId(patientStatus);
+                    taskStopWatch.stop();
 
-                patientStatusCache.put(correlationId, patientStatus);
+                    patientStatusCache.put(correlationId, patientStatus);
+                }
             }
 
             if (value.isAcquisitionComplete()) {
                 logger.trace("Beginning measure evaluation");
 
-                taskStopWatch.start("createBundle");
-                Bundle bundle = patientStatusBundler.createBundle(facilityId, correlationId);
-                taskStopWatch.stop();
+                try {
+                    taskStopWatch.start("createBundle");
+                    Bundle bundle = patientStatusBundler.createBundle(facilityId, correlationId);
+                    taskStopWatch.stop();
 
-                taskStopWatch.start("evaluateMeasures");
-                evaluateMeasures(value, patientStatus, bundle);
-                taskStopWatch.stop();
+                    evaluateMeasures(value, patientStatus, bundle, taskStopWatch);
+                } catch (RuntimeException e) {
+                    // The cached status may now hold changes that were never persisted
+                    patientStatusCache.remove(correlationId);
+                    throw e;
+                }
 
                 return;
             }
@@ -158,7 +187,7 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
             logger.trace("Beginning resource update");
 
             taskStopWatch.start("upsertResource");
-            upsertResource(facilityId, correlationId, value);
+            upsertResource(facilityId, correlationId, value, patientStatus);
             taskStopWatch.stop();
         } finally {
             totalStopWatch.stop();
@@ -167,18 +196,47 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
             }
             performanceLogger.trace("SUM_OF_TASKS: {} ns", taskStopWatch.getTotalTimeNanos());
             performanceLogger.trace("TOTAL: {} ns", totalStopWatch.getTotalTimeNanos());
+            recordStageDurations(record, taskStopWatch);
+        }
+    }
+
+    /**
+     * Records each stage's duration by facility and query type only. A record may schedule any combination of
+     * measures, so measures are not an attribute here; per-measure evaluation time is recorded by
+     * {@link EvaluateMeasureService}.
+     */
+    private void recordStageDurations(ConsumerRecord<String, T> record, StopWatch taskStopWatch) {
+        T value = record.value();
+        String queryType = value == null || value.getQueryType() == null ? "" : value.getQueryType().toString();
+        Attributes attributes = Attributes.builder()
+                .put(stringKey(DiagnosticNames.FACILITY_ID), Objects.requireNonNullElse(record.key(), ""))
+                .put(stringKey(DiagnosticNames.QUERY_TYPE), queryType)
+                .build();
+
+        // Stages that run once per measure (e.g., evaluateMeasures) are summed into a single observation per record
+        Map<String, Long> nanosByStage = new LinkedHashMap<>();
+        for (StopWatch.TaskInfo task : taskStopWatch.getTaskInfo()) {
+            nanosByStage.merge(task.getTaskName(), task.getTimeNanos(), Long::sum);
         }
+        nanosByStage.forEach((stage, nanos) -> measureEvalMetrics.StageDuration(stage, nanos, attributes));
     }
 
-    private Resource upsertResource (String facilityId, String correlationId, T value) {
+    private Resource upsertResource (String facilityId, String correlationId, T value, PatientReportingEvaluationStatus patientStatus) {
         logger.trace("Upserting resource in database");
+        Date expireAt = sharedResourceStore.getExpireAt(patientStatus);
+        if (expireAt != null && !expireAt.after(new Date())) {
+            // The correlation's other resources have expired, so this one alone would be evaluated as the patient's data
+            throw new IllegalStateException(String.format(
+                    "Correlation ID %s exceeded the retention period at %s", correlationId, expireAt));
+        }
         Resource resource = new Resource();
+        resource.setExpireAt(expireAt);
         resource.setFacilityId(facilityId);
         resource.setCorrelationId(correlationId);
         resource.setPatientId(value.getPatientId());
         resource.setResourceType(value.getResourceType());
         resource.setResourceId(value.getResourceId());
-        resource.setResource(value.getResource());
+        sharedResourceStore.store(resource, value.getResource());
         return resourceRepository.upsert(resource);
     }
 
@@ -198,6 +256,7 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
                 .flatMap(scheduledReport -> Arrays.stream(scheduledReport.getReportTypes())
                         .map(reportType -> {
                             PatientReportingEvaluationStatus.Report report = new PatientReportingEvaluationStatus.Report();
+                            report.setEntryId(UUID.randomUUID().toString());
                             report.setReportType(reportType);
                             report.setFrequency(scheduledReport.getFrequency());
                             report.setStartDate(scheduledReport.getStartDate());
@@ -209,18 +268,30 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
         return patientStatusRepository.insert(patientStatus);
     }
 
-    private void evaluateMeasures (T value, PatientReportingEvaluationStatus patientStatus, Bundle bundle) {
+    private void evaluateMeasures (T value, PatientReportingEvaluationStatus patientStatus, Bundle bundle, StopWatch taskStopWatch) {
         logger.debug("Evaluating measures");
-        for (PatientReportingEvaluationStatus.Report report : patientStatus.getReports()) {
-            MeasureReport measureReport = evaluateMeasureService.evaluateMeasure(value.getQueryType().toString(), patientStatus, report, bundle);
-            switch (value.getQueryType()) {
-                case INITIAL -> {
-                    updateReportability(patientStatus, report, measureReport);
-                    resourceEvaluatedProducer.produceResourceEvaluatedRecords(value.getQueryType(), patientStatus, report, measureReport);
+        List<PatientReportingEvaluationStatus.Report> reports = patientStatus.getReports();
+        taskStopWatch.start("evaluateMeasures");
+        List<MeasureReport> measureReports = evaluateMeasureService.evaluateMeasures(value.getQueryType().toString(), patientStatus, reports, bundle);
+        taskStopWatch.stop();
+        switch (value.getQueryType()) {
+            case INITIAL -> {
+                for (int i = 0; i < reports.size(); i++) {
+                    reports.get(i).setReportable(reportabilityPredicate.test(measureReports.get(i)));
                 }
-                case SUPPLEMENTAL -> resourceEvaluatedProducer.produceResourceEvaluatedRecords(value.getQueryType(), patientStatus, report, measureReport);
-                default -> throw new IllegalStateException(String.format("Unexpected query type: %s", value.getQueryType()));
+                // Persist reportability before producing results, so that it is never lost once they are visible
+                taskStopWatch.start("updateReportability");
+                patientStatusRepository.updateReportability(patientStatus);
+                taskStopWatch.stop();
+            }
+            case SUPPLEMENTAL -> {
             }
+            default -> throw new IllegalStateException(String.format("Unexpected query type: %s", value.getQueryType()));
+        }
+        for (int i = 0; i < reports.size(); i++) {
+            taskStopWatch.start("produce");
+            resourceEvaluatedProducer.produceResourceEvaluatedRecords(value.getQueryType(), patientStatus, reports.get(i), measureReports.get(i));
+            taskStopWatch.stop();
         }
 
         boolean reportablePatient = patientStatus.getReports().stream().anyMatch(PatientReportingEvaluationStatus.Report::getReportable);
@@ -229,7 +300,9 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
 
         // if the query type is INITIAL and at least one measure is reportable, produce the DataAcquisitionRequested record
         if (value.getQueryType() == QueryType.INITIAL && reportablePatient) {
+            taskStopWatch.start("produce");
             produceDataAcquisitionRequestedRecord(value, patientStatus);
+            taskStopWatch.stop();
         }
     }
 
@@ -247,14 +320,6 @@ public abstract class AbstractResourceConsumer<T extends AbstractResourceRecord>
         }
     }
 
-    private void updateReportability (
-            PatientReportingEvaluationStatus patientStatus,
-            PatientReportingEvaluationStatus.Report report,
-            MeasureReport measureReport) {
-        report.setReportable(reportabilityPredicate.test(measureReport));
-        patientStatusRepository.save(patientStatus);
-    }
-
 
 
     private void produceDataAcquisitionRequestedRecord (T value, PatientReportingEvaluationStatus patientStatus) {
@@ -0,0 +1,276 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Evaluates a measure for many patients at once on the cached evaluator, writing each patient's MeasureReport as a
+ * line of NDJSON as soon as its evaluation completes.
+ */
+@Service
+public class BulkEvaluateMeasureService {
+    private static final Logger logger = LoggerFactory.getLogger(BulkEvaluateMeasureService.class);
+
+    private final FhirContext fhirContext;
+    private final ExecutorService executor;
+    private final long maxRequestSize;
+    private final Duration timeout;
+
+    public BulkEvaluateMeasureService(FhirContext fhirContext, LinkConfig linkConfig) {
+        this.fhirContext = fhirContext;
+        this.executor = Executors.newFixedThreadPool(linkConfig.getBulkEvaluationThreads());
+        this.maxRequestSize = linkConfig.getBulkEvaluationMaxRequestSize().toBytes();
+        this.timeout = linkConfig.getBulkEvaluationTimeout();
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gets the time allowed for a bulk evaluation request to write all of its results.
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Reads resources from NDJSON, one line at a time, into one bundle per patient, as {@link #groupByPatient(List)}.
+     * Each resource is parsed and grouped as it is read, so the request body is never held as a whole.
+     * Bodies longer than {@code link.bulk-evaluation-max-request-size} (measured in characters) are rejected.
+     */
+    public Map<String, Bundle> readNdjson(InputStream stream) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        PatientGrouping grouping = new PatientGrouping();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        String line;
+        int lineNumber = 0;
+        long size = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            size += line.length() + 1;
+            if (size > maxRequestSize) {
+                throw new IllegalArgumentException(
+                        String.format("Request body exceeds %d characters on line %d", maxRequestSize, lineNumber));
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+            Resource resource;
+            try {
+                resource = (Resource) parser.parseResource(line);
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid resource on line %d: %s", lineNumber, e.getMessage()), e);
+            }
+            grouping.add(resource);
+        }
+        return grouping.getBundles();
+    }
+
+    /**
+     * Splits resources into one bundle per patient.
+     * Resources that reference a patient are placed in that patient's bundle; resources that reference no patient
+     * (e.g., Location, Medication) are placed in every patient's bundle.
+     */
+    public Map<String, Bundle> groupByPatient(List<Resource> resources) {
+        PatientGrouping grouping = new PatientGrouping();
+        resources.forEach(grouping::add);
+        return grouping.getBundles();
+    }
+
+    /**
+     * Groups resources by patient as they are added, in any order: resources may precede the patients they reference.
+     */
+    private class PatientGrouping {
+        private final FhirTerser terser = fhirContext.newTerser();
+        private final Map<String, Patient> patientsById = new LinkedHashMap<>();
+        private final Map<String, List<Resource>> resourcesByPatientId = new HashMap<>();
+        private final List<Resource> sharedResources = new ArrayList<>();
+
+        public void add(Resource resource) {
+            if (resource instanceof Bundle bundle) {
+                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                    if (entry.getResource() != null) {
+                        add(entry.getResource());
+                    }
+                }
+            } else if (resource instanceof Patient patient) {
+                String patientId = patient.getIdElement().getIdPart();
+                if (patientId == null) {
+                    throw new IllegalArgumentException("Patient resources must have an ID");
+                }
+                if (patientsById.putIfAbsent(patientId, patient) != null) {
+                    throw new IllegalArgumentException(String.format("Duplicate patient: %s", patientId));
+                }
+            } else {
+                Set<String> patientIds = new HashSet<>();
+                for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                    IIdType referenceElement = reference.getReferenceElement();
+                    if (ResourceType.Patient.name().equals(referenceElement.getResourceType())
+                            && referenceElement.getIdPart() != null) {
+                        patientIds.add(referenceElement.getIdPart());
+                    }
+                }
+                if (patientIds.isEmpty()) {
+                    sharedResources.add(resource);
+                }
+                for (String patientId : patientIds) {
+                    resourcesByPatientId.computeIfAbsent(patientId, _patientId -> new ArrayList<>()).add(resource);
+                }
+            }
+        }
+
+        public Map<String, Bundle> getBundles() {
+            if (patientsById.isEmpty()) {
+                throw new IllegalArgumentException("No Patient resources found");
+            }
+            for (Map.Entry<String, List<Resource>> entry : resourcesByPatientId.entrySet()) {
+                if (!patientsById.containsKey(entry.getKey())) {
+                    for (Resource resource : entry.getValue()) {
+                        logger.debug("Skipping {}/{}: Patient/{} not found",
+                                resource.getResourceType(), resource.getIdPart(), entry.getKey());
+                    }
+                }
+            }
+            Map<String, Bundle> bundlesByPatientId = new LinkedHashMap<>();
+            for (Map.Entry<String, Patient> entry : patientsById.entrySet()) {
+                Bundle bundle = new Bundle();
+                bundle.setType(Bundle.BundleType.COLLECTION);
+                bundle.addEntry().setResource(entry.getValue());
+                for (Resource resource : resourcesByPatientId.getOrDefault(entry.getKey(), List.of())) {
+                    bundle.addEntry().setResource(resource);
+                }
+                for (Resource resource : sharedResources) {
+                    bundle.addEntry().setResource(resource);
+                }
+                bundlesByPatientId.put(entry.getKey(), bundle);
+            }
+            return bundlesByPatientId;
+        }
+    }
+
+    /**
+     * Evaluates each patient in parallel and writes results in completion order.
+     * A patient whose evaluation fails is written as an OperationOutcome rather than aborting the remaining patients.
+     * When {@code summary} is set, a final SUMMARY MeasureReport with population counts totaled across all successful
+     * evaluations is written after the individual reports.
+     */
+    public void evaluate(
+            MeasureEvaluator evaluator,
+            DateTimeType periodStart,
+            DateTimeType periodEnd,
+            Map<String, Bundle> bundlesByPatientId,
+            boolean summary,
+            OutputStream outputStream) throws IOException {
+        CompletionService<MeasureReport> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<MeasureReport>, String> patientIdsByFuture = new HashMap<>();
+        for (Map.Entry<String, Bundle> entry : bundlesByPatientId.entrySet()) {
+            StringType subject = new StringType(new IdType(ResourceType.Patient.name(), entry.getKey()).getValue());
+            Bundle bundle = entry.getValue();
+            Future<MeasureReport> future = completionService.submit(
+                    () -> evaluator.evaluate(periodStart, periodEnd, subject, bundle));
+            patientIdsByFuture.put(future, entry.getKey());
+        }
+
+        IParser parser = fhirContext.newJsonParser();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        List<MeasureReport> measureReports = new ArrayList<>();
+        try {
+            for (int index = 0; index < patientIdsByFuture.size(); index++) {
+                Future<MeasureReport> future = completionService.take();
+                try {
+                    MeasureReport measureReport = future.get();
+                    measureReports.add(measureReport);
+                    write(writer, parser, measureReport);
+                } catch (ExecutionException e) {
+                    String patientId = patientIdsByFuture.get(future);
+                    logger.warn("Failed to evaluate patient {}", patientId, e.getCause());
+                    write(writer, parser, getOperationOutcome(patientId, e.getCause()));
+                }
+            }
+            if (summary) {
+                write(writer, parser, summarize(measureReports));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while awaiting evaluation results");
+        } finally {
+            patientIdsByFuture.keySet().forEach(future -> future.cancel(true));
+        }
+    }
+
+    private void write(Writer writer, IParser parser, Resource resource) throws IOException {
+        writer.write(parser.encodeResourceToString(resource));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private OperationOutcome getOperationOutcome(String patientId, Throwable cause) {
+        OperationOutcome operationOutcome = new OperationOutcome();
+        operationOutcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.EXCEPTION)
+                .setDiagnostics(String.format("Failed to evaluate Patient/%s: %s", patientId, cause.getMessage()))
+                .addExpression(String.format("Patient/%s", patientId));
+        return operationOutcome;
+    }
+
+    public MeasureReport summarize(List<MeasureReport> measureReports) {
+        MeasureReport summary = new MeasureReport();
+        summary.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+        summary.setType(MeasureReport.MeasureReportType.SUMMARY);
+        summary.setDate(new Date());
+        if (!measureReports.isEmpty()) {
+            MeasureReport first = measureReports.get(0);
+            summary.setMeasure(first.getMeasure());
+            summary.setPeriod(first.getPeriod().copy());
+        }
+        for (MeasureReport measureReport : measureReports) {
+            for (MeasureReport.MeasureReportGroupComponent group : measureReport.getGroup()) {
+                MeasureReport.MeasureReportGroupComponent summaryGroup = summary.getGroup().stream()
+                        .filter(_group -> Objects.equals(_group.getId(), group.getId())
+                                && _group.getCode().equalsDeep(group.getCode()))
+                        .findFirst()
+                        .orElseGet(() -> {
+                            MeasureReport.MeasureReportGroupComponent _group = summary.addGroup();
+                            _group.setId(group.getId());
+                            _group.setCode(group.getCode().copy());
+                            return _group;
+                        });
+                for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+                    MeasureReport.MeasureReportGroupPopulationComponent summaryPopulation = summaryGroup.getPopulation()
+                            .stream()
+                            .filter(_population -> _population.getCode().equalsDeep(population.getCode()))
+                            .findFirst()
+                            .orElseGet(() -> {
+                                MeasureReport.MeasureReportGroupPopulationComponent _population =
+                                        summaryGroup.addPopulation();
+                                _population.setId(population.getId());
+                                _population.setCode(population.getCode().copy());
+                                _population.setCount(0);
+                                return _population;
+                            });
+                    summaryPopulation.setCount(summaryPopulation.getCount() + population.getCount());
+                }
+            }
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,177 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.cql.model.ModelIdentifier;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds libraries compiled by the CQL translator so that libraries common to many measures (e.g., FHIRHelpers) are
+ * compiled once and shared by every evaluator, along with the models they use.
+ * <p>
+ * Libraries are keyed by canonical URL, version, and a SHA-256 hash of the Library's FHIR JSON, so measures that
+ * carry different content under the same canonical URL never share a compiled library. A shared library is held only
+ * as long as some evaluator holds it; it is otherwise left to the garbage collector.
+ */
+@Component
+public class CompiledLibraryCache {
+    private final Map<String, WeakReference<CompiledLibrary>> librariesByKey = new ConcurrentHashMap<>();
+    private final Map<ModelIdentifier, Model> modelsByIdentifier = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+
+    @Autowired
+    public CompiledLibraryCache(MeasureEvalMetrics measureEvalMetrics) {
+        measureEvalMetrics.ObserveLibraryCache(this::getSize, hits::get);
+    }
+
+    public CompiledLibraryCache() {
+    }
+
+    /**
+     * Gets a view of this cache for the libraries in a measure bundle, suitable for
+     * {@link org.opencds.cqf.fhir.cql.EvaluationSettings#setLibraryCache(Map)}.
+     * The view is keyed as the translator keys compiled libraries: by name, optionally with a version.
+     * Libraries that are not in the bundle are cached in the view only.
+     */
+    public Map<VersionedIdentifier, CompiledLibrary> viewOf(FhirContext fhirContext, Bundle bundle) {
+        return viewOf(fhirContext, bundle, Map.of());
+    }
+
+    /**
+     * Gets a view of this cache for the libraries in a measure bundle, as {@link #viewOf(FhirContext, Bundle)}, in
+     * which the given libraries take precedence and are never shared.
+     * This is for libraries that were not compiled by the translator (e.g., those loaded from stored ELM), which other
+     * evaluators should not rely on.
+     */
+    public Map<VersionedIdentifier, CompiledLibrary> viewOf(
+            FhirContext fhirContext, Bundle bundle, Map<VersionedIdentifier, CompiledLibrary> localLibraries) {
+        Map<String, String> keysByIdentifier = new HashMap<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (!(entry.getResource() instanceof Library library) || !library.hasName()) {
+                continue;
+            }
+            String key = String.join("|", Objects.toString(library.getUrl(), library.getName()),
+                    Objects.toString(library.getVersion(), ""),
+                    hash(fhirContext.newJsonParser().encodeResourceToString(library)));
+            keysByIdentifier.put(library.getName(), key);
+            if (library.hasVersion()) {
+                keysByIdentifier.put(library.getName() + "|" + library.getVersion(), key);
+            }
+        }
+        View view = new View(keysByIdentifier);
+        view.local.putAll(localLibraries);
+        return view;
+    }
+
+    /**
+     * Gets the models shared by all evaluators, suitable for
+     * {@link org.opencds.cqf.fhir.cql.EvaluationSettings#setModelCache(Map)}.
+     */
+    public Map<ModelIdentifier, Model> getModelCache() {
+        return modelsByIdentifier;
+    }
+
+    /**
+     * Gets the number of shared libraries that are still held by some evaluator.
+     */
+    public long getSize() {
+        librariesByKey.values().removeIf(reference -> reference.get() == null);
+        return librariesByKey.size();
+    }
+
+    /**
+     * Gets the number of times a library was taken from this cache rather than compiled.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    private CompiledLibrary get(String key) {
+        WeakReference<CompiledLibrary> reference = librariesByKey.get(key);
+        return reference == null ? null : reference.get();
+    }
+
+    private CompiledLibrary putIfAbsent(String key, CompiledLibrary library) {
+        WeakReference<CompiledLibrary> reference = librariesByKey.compute(key, (_key, existing) ->
+                existing == null || existing.get() == null ? new WeakReference<>(library) : existing);
+        CompiledLibrary shared = reference.get();
+        return shared == null ? library : shared;
+    }
+
+    private static String getKey(VersionedIdentifier identifier) {
+        return identifier.getVersion() == null
+                ? identifier.getId()
+                : identifier.getId() + "|" + identifier.getVersion();
+    }
+
+    private static String hash(String json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(json.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private class View extends AbstractMap<VersionedIdentifier, CompiledLibrary> {
+        private final Map<String, String> keysByIdentifier;
+
+        // Holds every library this view has used, so that a shared library lives as long as any evaluator using it
+        private final Map<VersionedIdentifier, CompiledLibrary> local = new ConcurrentHashMap<>();
+
+        private View(Map<String, String> keysByIdentifier) {
+            this.keysByIdentifier = keysByIdentifier;
+        }
+
+        @Override
+        public CompiledLibrary get(Object key) {
+            CompiledLibrary library = local.get(key);
+            if (library != null || !(key instanceof VersionedIdentifier identifier)) {
+                return library;
+            }
+            String sharedKey = keysByIdentifier.get(getKey(identifier));
+            if (sharedKey == null) {
+                return null;
+            }
+            library = CompiledLibraryCache.this.get(sharedKey);
+            if (library == null) {
+                return null;
+            }
+            hits.incrementAndGet();
+            CompiledLibrary existing = local.putIfAbsent(identifier, library);
+            return existing == null ? library : existing;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public CompiledLibrary put(VersionedIdentifier key, CompiledLibrary value) {
+            String sharedKey = keysByIdentifier.get(getKey(key));
+            if (sharedKey != null) {
+                value = CompiledLibraryCache.this.putIfAbsent(sharedKey, value);
+            }
+            return local.put(key, value);
+        }
+
+        @Override
+        public Set<Map.Entry<VersionedIdentifier, CompiledLibrary>> entrySet() {
+            return Collections.unmodifiableSet(local.entrySet());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.lantanagroup.link.measureeval.services;
+
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The time taken to evaluate each of a measure's CQL definitions for one patient, as returned by
+ * {@link MeasureEvaluator#profile}.
+ */
+public record CqlProfile(List<Entry> entries) {
+    public static final String ID = "cql-profile";
+
+    /**
+     * Summarizes this profile as a Parameters resource with one {@code definition} parameter per definition, slowest
+     * first.
+     */
+    public Parameters toParameters() {
+        Parameters parameters = new Parameters();
+        parameters.setId(ID);
+        entries.stream()
+                .sorted(Comparator.comparingLong(Entry::durationNanos).reversed())
+                .forEach(entry -> {
+                    Parameters.ParametersParameterComponent parameter = parameters.addParameter().setName("definition");
+                    parameter.addPart().setName("library").setValue(new StringType(entry.library()));
+                    parameter.addPart().setName("name").setValue(new StringType(entry.definition()));
+                    parameter.addPart().setName("durationMillis").setValue(new DecimalType(
+                            BigDecimal.valueOf(entry.durationNanos()).movePointLeft(6).setScale(3, RoundingMode.HALF_UP)));
+                    if (entry.error() != null) {
+                        parameter.addPart().setName("error").setValue(new StringType(entry.error()));
+                    }
+                });
+        return parameters;
+    }
+
+    /**
+     * The time taken to evaluate a definition, excluding definitions evaluated before it, and the error, if any, that
+     * its evaluation raised.
+     */
+    public record Entry(String library, String definition, long durationNanos, String error) {
+    }
+}
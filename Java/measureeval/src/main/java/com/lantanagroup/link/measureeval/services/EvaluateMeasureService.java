@@ -1,15 +1,24 @@
 package com.lantanagroup.link.measureeval.services;
 
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.CqlProfilingSettings;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
 import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
+import com.lantanagroup.link.measureeval.repositories.IndexedFhirRepository;
+import com.lantanagroup.link.measureeval.utils.EvaluationBudget;
 import com.lantanagroup.link.shared.utils.DiagnosticNames;
 import com.lantanagroup.link.shared.utils.LogUtils;
 import io.opentelemetry.api.common.Attributes;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.*;
 import java.util.stream.Collectors;
 
 import static io.opentelemetry.api.common.AttributeKey.stringKey;
@@ -18,12 +27,45 @@ import static io.opentelemetry.api.common.AttributeKey.stringKey;
 public class EvaluateMeasureService {
 
     private static final Logger logger = LoggerFactory.getLogger(EvaluateMeasureService.class);
+    private final FhirContext fhirContext;
     private final MeasureEvaluatorCache measureEvaluatorCache;
     private final MeasureEvalMetrics measureEvalMetrics;
+    private final Duration evaluationBudget;
+    private final CqlProfilingSettings profilingSettings;
+
+    @Autowired
+    public EvaluateMeasureService(
+            FhirContext fhirContext,
+            MeasureEvaluatorCache measureEvaluatorCache,
+            MeasureEvalMetrics measureEvalMetrics,
+            LinkConfig linkConfig) {
+        this(fhirContext, measureEvaluatorCache, measureEvalMetrics, linkConfig.getEvaluationBudget(),
+                linkConfig.getCqlProfiling());
+    }
 
     public EvaluateMeasureService(MeasureEvaluatorCache measureEvaluatorCache, MeasureEvalMetrics measureEvalMetrics) {
+        this(measureEvaluatorCache, measureEvalMetrics, null, new CqlProfilingSettings());
+    }
+
+    public EvaluateMeasureService(
+            MeasureEvaluatorCache measureEvaluatorCache,
+            MeasureEvalMetrics measureEvalMetrics,
+            Duration evaluationBudget,
+            CqlProfilingSettings profilingSettings) {
+        this(FhirContext.forR4Cached(), measureEvaluatorCache, measureEvalMetrics, evaluationBudget, profilingSettings);
+    }
+
+    public EvaluateMeasureService(
+            FhirContext fhirContext,
+            MeasureEvaluatorCache measureEvaluatorCache,
+            MeasureEvalMetrics measureEvalMetrics,
+            Duration evaluationBudget,
+            CqlProfilingSettings profilingSettings) {
+        this.fhirContext = fhirContext;
         this.measureEvaluatorCache = measureEvaluatorCache;
         this.measureEvalMetrics = measureEvalMetrics;
+        this.evaluationBudget = evaluationBudget;
+        this.profilingSettings = profilingSettings;
     }
 
     // Overload without queryType just calls the unified one
@@ -40,11 +82,20 @@ public class EvaluateMeasureService {
             PatientReportingEvaluationStatus patientStatus,
             PatientReportingEvaluationStatus.Report report,
             Bundle bundle) {
+        return evaluateMeasure(queryType, patientStatus, report, new IndexedFhirRepository(fhirContext, bundle));
+    }
+
+    private MeasureReport evaluateMeasure(
+            String queryType,
+            PatientReportingEvaluationStatus patientStatus,
+            PatientReportingEvaluationStatus.Report report,
+            IndexedFhirRepository patientData) {
 
         long start = System.currentTimeMillis();
 
         try {
-            MeasureReport measureReport = doReportGeneration(patientStatus, report, bundle);
+            MeasureEvaluator measureEvaluator = getMeasureEvaluator(report.getReportType());
+            MeasureReport measureReport = doReportGeneration(measureEvaluator, patientStatus, report, patientData);
 
             logPopulationCounts(measureReport);
 
@@ -60,9 +111,33 @@ public class EvaluateMeasureService {
             }
 
             measureEvalMetrics.MeasureEvalDuration(timeElapsed, attributes);
+
+            // Profiled afterward, so that profiling counts toward neither the evaluation's duration nor its budget
+            if (profilingSettings.shouldProfile(report.getReportType(), patientStatus.getFacilityId())) {
+                profile(measureEvaluator, patientStatus, report, patientData);
+            }
             return measureReport;
 
         } catch (Exception ex) {
+            // The engine wraps exceptions thrown from the repository, so look for an overrun anywhere in the chain
+            int exceededIndex = ExceptionUtils.indexOfType(ex, EvaluationBudget.ExceededException.class);
+            if (exceededIndex >= 0) {
+                Throwable exceeded = ExceptionUtils.getThrowables(ex)[exceededIndex];
+                // Thrown to the consumer, which sends the record to its error topic along with this diagnostic message
+                String message = String.format("Measure evaluation cancelled [measure=%s, patient=%s, facility=%s, correlationId=%s, resources=%d]: %s",
+                        report.getReportType(),
+                        safe(patientStatus.getPatientId()),
+                        safe(patientStatus.getFacilityId()),
+                        safe(patientStatus.getCorrelationId()),
+                        patientData.getBundle().getEntry().size(),
+                        exceeded.getMessage());
+                logger.warn(message);
+                measureEvalMetrics.IncrementEvaluationBudgetOverrunCounter(Attributes.builder()
+                        .put(stringKey(DiagnosticNames.FACILITY_ID), safe(patientStatus.getFacilityId()))
+                        .put(stringKey(DiagnosticNames.REPORT_TYPE), safe(report.getReportType()))
+                        .build());
+                throw new IllegalStateException(message, exceeded);
+            }
             logger.error("Measure evaluation failed [measure={}, patient={}, facility={}, correlationId={}]: {}",
                     report.getReportType(),
                     safe(patientStatus.getPatientId()),
@@ -74,10 +149,40 @@ public class EvaluateMeasureService {
         }
     }
 
-    private MeasureReport doReportGeneration(PatientReportingEvaluationStatus patientStatus,
-                                             PatientReportingEvaluationStatus.Report report,
-                                             Bundle bundle) {
-        String measureId = report.getReportType();
+    /**
+     * Evaluates all of a patient's reports against the same data, returning a measure report for each in order.
+     * The patient's data is indexed once, and the index is shared by every evaluation.
+     * <p>
+     * Deduplication is at the level of whole measures: reports that evaluate the same measure over the same period
+     * share one evaluation, and each such report gets its own copy of the resulting measure report. Each distinct
+     * measure is still evaluated in its own CQL engine context, so expression results (e.g., of definitions in a library
+     * that several measures include) are not shared between measures.
+     */
+    public List<MeasureReport> evaluateMeasures(
+            String queryType,
+            PatientReportingEvaluationStatus patientStatus,
+            List<PatientReportingEvaluationStatus.Report> reports,
+            Bundle bundle) {
+        IndexedFhirRepository patientData = new IndexedFhirRepository(fhirContext, bundle);
+        Map<EvaluationKey, MeasureReport> measureReportsByKey = new HashMap<>();
+        List<MeasureReport> measureReports = new ArrayList<>();
+        for (PatientReportingEvaluationStatus.Report report : reports) {
+            EvaluationKey key = new EvaluationKey(report.getReportType(), report.getStartDate(), report.getEndDate());
+            MeasureReport measureReport = measureReportsByKey.get(key);
+            if (measureReport == null) {
+                measureReport = evaluateMeasure(queryType, patientStatus, report, patientData);
+                measureReportsByKey.put(key, measureReport);
+                measureReports.add(measureReport);
+            } else {
+                logger.debug("Reusing evaluation of measure {} for report {}",
+                        key.reportType(), safe(report.getReportTrackingId()));
+                measureReports.add(measureReport.copy());
+            }
+        }
+        return measureReports;
+    }
+
+    private MeasureEvaluator getMeasureEvaluator(String measureId) {
         if (logger.isDebugEnabled()) {
             logger.debug("Evaluating measure: {}", measureId);
         }
@@ -85,11 +190,43 @@ public class EvaluateMeasureService {
         if (measureEvaluator == null) {
             throw new IllegalStateException(String.format("Unknown measure: %s", measureId));
         }
-        return measureEvaluator.evaluate(
+        return measureEvaluator;
+    }
+
+    private MeasureReport doReportGeneration(MeasureEvaluator measureEvaluator,
+                                             PatientReportingEvaluationStatus patientStatus,
+                                             PatientReportingEvaluationStatus.Report report,
+                                             IndexedFhirRepository patientData) {
+        return EvaluationBudget.call(evaluationBudget, () -> measureEvaluator.evaluate(
                 report.getStartDate(),
                 report.getEndDate(),
                 patientStatus.getPatientId(),
-                bundle);
+                patientData));
+    }
+
+    private void profile(MeasureEvaluator measureEvaluator,
+                         PatientReportingEvaluationStatus patientStatus,
+                         PatientReportingEvaluationStatus.Report report,
+                         IndexedFhirRepository patientData) {
+        CqlProfile profile;
+        try {
+            profile = measureEvaluator.profile(
+                    report.getStartDate(),
+                    report.getEndDate(),
+                    patientStatus.getPatientId(),
+                    patientData);
+        } catch (Exception e) {
+            // Profiling must never fail an evaluation that has already succeeded
+            logger.warn("Failed to profile measure {}: {}", report.getReportType(), e.getMessage());
+            return;
+        }
+        Attributes attributes = Attributes.builder()
+                .put(stringKey(DiagnosticNames.FACILITY_ID), safe(patientStatus.getFacilityId()))
+                .put(stringKey(DiagnosticNames.REPORT_TYPE), safe(report.getReportType()))
+                .build();
+        for (CqlProfile.Entry entry : profile.entries()) {
+            measureEvalMetrics.CqlDefinitionDuration(entry.library(), entry.definition(), entry.durationNanos(), attributes);
+        }
     }
 
     private Attributes buildAttributes(String queryType,
@@ -121,6 +258,9 @@ public class EvaluateMeasureService {
         }
     }
 
+    private record EvaluationKey(String reportType, Date startDate, Date endDate) {
+    }
+
     private static String safe(String v) {
         String s = LogUtils.sanitize(v);
         return (s == null) ? "" : s;
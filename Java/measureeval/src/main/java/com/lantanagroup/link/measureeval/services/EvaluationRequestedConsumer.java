@@ -8,7 +8,9 @@ import com.lantanagroup.link.measureeval.records.ResourceEvaluated;
 import com.lantanagroup.link.measureeval.repositories.PatientReportingEvaluationStatusRepository;
 import com.lantanagroup.link.measureeval.repositories.ResourceRepository;
 import com.lantanagroup.link.shared.kafka.AsyncListener;
+import com.lantanagroup.link.shared.kafka.FairScheduler;
 import com.lantanagroup.link.shared.kafka.Headers;
+import com.lantanagroup.link.shared.kafka.Priority;
 import com.lantanagroup.link.shared.utils.DiagnosticNames;
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.Span;
@@ -23,6 +25,7 @@ import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.listener.ConsumerRecordRecoverer;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.function.Predicate;
 
@@ -37,6 +40,7 @@ public class EvaluationRequestedConsumer extends AsyncListener<String, Evaluatio
     private final PatientStatusBundler patientStatusBundler;
     private final ResourceEvaluatedProducer resourceEvaluatedProducer;
     private final EvaluateMeasureService evaluateMeasureService;
+    private final SharedResourceStore sharedResourceStore;
 
     EvaluationRequestedConsumer(ResourceRepository resourceRepository,
                                 PatientReportingEvaluationStatusRepository patientStatusRepository,
@@ -49,13 +53,21 @@ public class EvaluationRequestedConsumer extends AsyncListener<String, Evaluatio
                                 PatientStatusBundler patientStatusBundler,
                                 ResourceEvaluatedProducer resourceEvaluatedProducer,
                                 EvaluateMeasureService evaluateMeasureService,
+                                SharedResourceStore sharedResourceStore,
+                                FairScheduler consumerScheduler,
                                 ConsumerRecordRecoverer recoverer) {
-        super(recoverer);
+        super(recoverer, consumerScheduler);
         this.patientStatusRepository = patientStatusRepository;
         this.measureEvalMetrics = measureEvalMetrics;
         this.patientStatusBundler = patientStatusBundler;
         this.resourceEvaluatedProducer = resourceEvaluatedProducer;
         this.evaluateMeasureService = evaluateMeasureService;
+        this.sharedResourceStore = sharedResourceStore;
+    }
+
+    @Override
+    protected Priority getPriority(ConsumerRecord<String, EvaluationRequested> record) {
+        return Priority.LOW;
     }
 
     @Override
@@ -75,6 +87,11 @@ public class EvaluationRequestedConsumer extends AsyncListener<String, Evaluatio
 
         if (patientReportStatus != null) {
             var bundle = patientStatusBundler.createBundle(facilityId, patientReportStatus.getCorrelationId());
+            if (!bundle.hasEntry() && sharedResourceStore.isExpired(patientReportStatus)) {
+                throw new IllegalStateException(String.format(
+                        "No resources found for correlation ID %s; they have exceeded the retention period",
+                        patientReportStatus.getCorrelationId()));
+            }
             evaluateMeasures(reportTrackingId, correlationId, record.value(), patientReportStatus, bundle);
         } else {
             logger.warn("Patient status not found for facilityId: {}, patientId: {}, reportTrackingId: {}. EvaluationRequested event not fully processed.", facilityId, record.value().getPatientId(), record.value().getPreviousReportId());
@@ -99,10 +116,10 @@ public class EvaluationRequestedConsumer extends AsyncListener<String, Evaluatio
         newPatientStatus.setReports(reports);
         patientStatusRepository.insert(newPatientStatus);
 
-        reports.forEach(r -> {
-            MeasureReport measureReport = evaluateMeasureService.evaluateMeasure(patientStatus, r, bundle);
-            this.resourceEvaluatedProducer.produceResourceEvaluatedRecords(patientStatus, r, measureReport);
-        });
+        List<MeasureReport> measureReports = evaluateMeasureService.evaluateMeasures(null, patientStatus, reports, bundle);
+        for (int i = 0; i < reports.size(); i++) {
+            this.resourceEvaluatedProducer.produceResourceEvaluatedRecords(patientStatus, reports.get(i), measureReports.get(i));
+        }
 
         boolean reportablePatient = patientStatus.getReports().stream().anyMatch(PatientReportingEvaluationStatus.Report::getReportable);
         // if at least one reportable measure, increment the reportable patient counter otherwise increment the non-reportable patient counter
@@ -0,0 +1,191 @@
+package com.lantanagroup.link.measureeval.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.MeasureDefinition;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Keeps snapshots of compiled measure state on local disk so that, after a restart, measures are compiled without
+ * expanding ValueSets and with their libraries loaded from ELM (any library whose ELM cannot be loaded is translated
+ * from CQL as usual). Each snapshot holds a measure's ELM and ValueSet expansions and is keyed by measure definition
+ * ID and version; a snapshot of any other version, or from a different CQL translator version, is deleted rather than
+ * used. A snapshot's modification time records when its measure was last used. Snapshots are disabled unless a
+ * directory is configured.
+ */
+@Component
+public class EvaluatorSnapshotStore {
+    private static final Logger logger = LoggerFactory.getLogger(EvaluatorSnapshotStore.class);
+    private static final String EXTENSION = ".json";
+
+    private final Path directory;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    public EvaluatorSnapshotStore(LinkConfig linkConfig) {
+        this(linkConfig.getEvaluatorSnapshotDirectory());
+    }
+
+    public EvaluatorSnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Gets the IDs of the measure definitions that have snapshots, most recently used first.
+     */
+    public List<String> getIds() {
+        if (!isEnabled() || !Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths
+                    .filter(path -> path.getFileName().toString().endsWith(EXTENSION))
+                    .map(path -> Map.entry(path, getLastModifiedTime(path)))
+                    .sorted(Map.Entry.<Path, FileTime>comparingByValue().reversed())
+                    .map(entry -> entry.getKey().getFileName().toString())
+                    .map(fileName -> fileName.substring(0, fileName.length() - EXTENSION.length()))
+                    .map(id -> URLDecoder.decode(id, StandardCharsets.UTF_8))
+                    .toList();
+        } catch (IOException e) {
+            logger.warn("Failed to list evaluator snapshots in {}", directory, e);
+            return List.of();
+        }
+    }
+
+    private static FileTime getLastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0L);
+        }
+    }
+
+    /**
+     * Records that a measure definition's evaluator was used, if it has a snapshot.
+     */
+    public void touch(String id) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            Files.setLastModifiedTime(getPath(id), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Not snapshotted
+        } catch (IOException e) {
+            logger.warn("Failed to touch evaluator snapshot of measure definition {}", id, e);
+        }
+    }
+
+    /**
+     * Reads the snapshot of a version of a measure definition, or returns null if there is no current snapshot.
+     */
+    public Snapshot read(String id, long version) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Path path = getPath(id);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = objectMapper.readValue(path.toFile(), Snapshot.class);
+        } catch (IOException e) {
+            logger.warn("Failed to read evaluator snapshot of measure definition {}", id, e);
+            delete(id);
+            return null;
+        }
+        if (snapshot.version() != version
+                || !Objects.equals(snapshot.translatorVersion(), MeasureEvaluator.getTranslatorVersion())) {
+            logger.info("Deleting stale evaluator snapshot of measure definition {} (version {})",
+                    id, snapshot.version());
+            delete(id);
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes a snapshot of a compiled version of a measure definition, replacing any existing snapshot.
+     */
+    public void write(String id, long version, MeasureEvaluator instance) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            List<MeasureDefinition.Elm> elm = MeasureEvaluatorCache.toElm(instance.getElm());
+            Map<String, List<SnapshotCode>> valueSetExpansions = new HashMap<>();
+            instance.getValueSetExpansions().forEach((url, codes) ->
+                    valueSetExpansions.put(url, codes.stream().map(SnapshotCode::of).toList()));
+            Snapshot snapshot = new Snapshot(
+                    id, version, MeasureEvaluator.getTranslatorVersion(), elm, valueSetExpansions);
+            Files.createDirectories(directory);
+            // Write to a temporary file first so that a crash never leaves a partial snapshot behind
+            Path temp = Files.createTempFile(directory, null, null);
+            objectMapper.writeValue(temp.toFile(), snapshot);
+            Files.move(temp, getPath(id), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Wrote evaluator snapshot of measure definition {} (version {})", id, version);
+        } catch (Exception e) {
+            logger.warn("Failed to write evaluator snapshot of measure definition {}", id, e);
+        }
+    }
+
+    public void delete(String id) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(getPath(id));
+        } catch (IOException e) {
+            logger.warn("Failed to delete evaluator snapshot of measure definition {}", id, e);
+        }
+    }
+
+    private Path getPath(String id) {
+        return directory.resolve(URLEncoder.encode(id, StandardCharsets.UTF_8) + EXTENSION);
+    }
+
+    public record Snapshot(
+            String id,
+            long version,
+            String translatorVersion,
+            List<MeasureDefinition.Elm> elm,
+            Map<String, List<SnapshotCode>> valueSetExpansions) {
+        public Map<String, List<Code>> valueSetCodes() {
+            Map<String, List<Code>> expansions = new HashMap<>();
+            valueSetExpansions.forEach((url, codes) ->
+                    expansions.put(url, codes.stream().map(SnapshotCode::toCode).toList()));
+            return expansions;
+        }
+    }
+
+    public record SnapshotCode(String system, String code, String version, String display) {
+        private static SnapshotCode of(Code code) {
+            return new SnapshotCode(code.getSystem(), code.getCode(), code.getVersion(), code.getDisplay());
+        }
+
+        private Code toCode() {
+            return new Code().withSystem(system).withCode(code).withVersion(version).withDisplay(display);
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package com.lantanagroup.link.measureeval.services;
 
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.CompressionDictionary;
 import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
 import com.lantanagroup.link.measureeval.entities.Resource;
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.event.ContextRefreshedEvent;
@@ -9,31 +14,110 @@ import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ensures the indexes that back each repository query, then verifies with {@code explain()} that every query shape
+ * is served by an index.
+ * This runs on a background thread so that index builds on large collections do not delay startup.
+ * When adding a repository query method, add its shape to {@link #QUERY_SHAPES} (and an index to {@link #INDEXES} if
+ * no existing index has a prefix covering its fields).
+ * It also maintains the TTL indexes that enforce {@code link.resource-retention} on the Resource and SharedResource
+ * collections.
+ */
 @Component
 public class IndexCreator {
     private static final Logger logger = LoggerFactory.getLogger(IndexCreator.class);
+    private static final String RETENTION_INDEX_NAME = "expireAt_ttl";
+    private static final String LEGACY_RETENTION_INDEX_NAME = "modifiedDate_ttl";
+
+    private static final List<EntityIndex> INDEXES = List.of(
+            new EntityIndex(PatientReportingEvaluationStatus.class, new Index()
+                    .on("facilityId", Sort.Direction.ASC)
+                    .on("correlationId", Sort.Direction.ASC)),
+            new EntityIndex(PatientReportingEvaluationStatus.class, new Index()
+                    .on("facilityId", Sort.Direction.ASC)
+                    .on("patientId", Sort.Direction.ASC)
+                    .on("reports.reportTrackingId", Sort.Direction.ASC)),
+            new EntityIndex(Resource.class, new Index()
+                    .on("facilityId", Sort.Direction.ASC)
+                    .on("correlationId", Sort.Direction.ASC)
+                    .on("resourceType", Sort.Direction.ASC)
+                    .on("resourceId", Sort.Direction.ASC)),
+            new EntityIndex(CompressionDictionary.class, new Index()
+                    .on("createdDate", Sort.Direction.DESC)));
+
+    private static final List<QueryShape> QUERY_SHAPES = List.of(
+            new QueryShape(PatientReportingEvaluationStatus.class, "findByFacilityIdAndCorrelationId",
+                    "facilityId", "correlationId"),
+            new QueryShape(PatientReportingEvaluationStatus.class, "findByFacilityIdAndPatientIdAndReportsReportTrackingId",
+                    "facilityId", "patientId", "reports.reportTrackingId"),
+            new QueryShape(PatientReportingEvaluationStatus.class, "setPatientId",
+                    "facilityId", "correlationId"),
+            new QueryShape(PatientReportingEvaluationStatus.class, "updateReportability",
+                    "facilityId", "correlationId"),
+            new QueryShape(Resource.class, "findUnexpiredByFacilityIdAndCorrelationId",
+                    "facilityId", "correlationId"),
+            new QueryShape(Resource.class, "upsert",
+                    "facilityId", "correlationId", "resourceType", "resourceId"),
+            new QueryShape(SharedResource.class, "findAllById",
+                    "_id"),
+            new QueryShape(SharedResource.class, "reference",
+                    "_id"),
+            new QueryShape(CompressionDictionary.class, "findById",
+                    "_id"),
+            new QueryShape(CompressionDictionary.class, "findFirstByOrderByCreatedDateDesc",
+                    Sort.by(Sort.Direction.DESC, "createdDate")));
 
     private final MongoOperations mongoOperations;
+    private final LinkConfig linkConfig;
+    private final AtomicBoolean started = new AtomicBoolean();
 
-    public IndexCreator(MongoOperations mongoOperations) {
+    public IndexCreator(MongoOperations mongoOperations, LinkConfig linkConfig) {
         this.mongoOperations = mongoOperations;
+        this.linkConfig = linkConfig;
     }
 
     @EventListener(ContextRefreshedEvent.class)
     public void contextRefreshed() {
-        ensureIndex(PatientReportingEvaluationStatus.class, new Index()
-                .on("facilityId", Sort.Direction.ASC)
-                .on("correlationId", Sort.Direction.ASC));
-        ensureIndex(Resource.class, new Index()
-                .on("facilityId", Sort.Direction.ASC)
-                .on("correlationId", Sort.Direction.ASC)
-                .on("resourceType", Sort.Direction.ASC)
-                .on("resourceId", Sort.Direction.ASC));
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(this::run, "index-creator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        for (QueryShape queryShape : QUERY_SHAPES) {
+            if (!queryShape.isIdLookup()
+                    && getIndexes(queryShape.entityClass()).stream().noneMatch(queryShape::isCoveredBy)) {
+                logger.warn("No declared index covers {}", queryShape);
+            }
+        }
+        for (EntityIndex index : INDEXES) {
+            ensureIndex(index.entityClass(), index.index());
+        }
+        verify();
+        ensureRetention(Resource.class);
+        ensureRetention(SharedResource.class);
+    }
+
+    private List<IndexDefinition> getIndexes(Class<?> entityClass) {
+        return INDEXES.stream()
+                .filter(index -> index.entityClass() == entityClass)
+                .map(EntityIndex::index)
+                .toList();
     }
 
-    private <T> void ensureIndex(Class<T> entityClass, Index index) {
+    private <T> void ensureIndex(Class<T> entityClass, IndexDefinition index) {
         logger.info("Ensuring index on {}: {}", entityClass.getSimpleName(), index);
         try {
             mongoOperations.indexOps(entityClass).ensureIndex(index);
@@ -41,4 +125,146 @@ public class IndexCreator {
             logger.error("Failed to ensure index", e);
         }
     }
+
+    private void verify() {
+        List<QueryShape> collectionScans = new ArrayList<>();
+        for (QueryShape queryShape : QUERY_SHAPES) {
+            try {
+                Document explanation = mongoOperations.getCollection(mongoOperations.getCollectionName(queryShape.entityClass()))
+                        .find(queryShape.getFilter())
+                        .sort(queryShape.getSort())
+                        .explain();
+                Object winningPlan = explanation.get("queryPlanner", Document.class).get("winningPlan");
+                if (isCollectionScan(winningPlan)) {
+                    collectionScans.add(queryShape);
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to explain {}", queryShape, e);
+            }
+        }
+        if (collectionScans.isEmpty()) {
+            logger.info("Verified that all {} query shapes use an index", QUERY_SHAPES.size());
+        } else {
+            for (QueryShape queryShape : collectionScans) {
+                logger.warn("Query falls back to COLLSCAN: {}", queryShape);
+            }
+        }
+    }
+
+    /**
+     * Creates or drops the TTL index on expireAt to match the configured retention.
+     * Each document carries its own expiration, stamped when it is written (see
+     * {@link SharedResourceStore#getExpireAt}), so the index expires documents as soon as that time has passed; a
+     * change in retention applies to documents written afterward.
+     * When the index is first created, documents without an expireAt are given one based on when they were last
+     * written; the TTL index that previously enforced retention on modifiedDate is dropped.
+     */
+    private void ensureRetention(Class<?> entityClass) {
+        Duration retention = linkConfig.getResourceRetention();
+        try {
+            IndexOperations indexOps = mongoOperations.indexOps(entityClass);
+            List<String> existing = indexOps.getIndexInfo().stream().map(IndexInfo::getName).toList();
+            if (existing.contains(LEGACY_RETENTION_INDEX_NAME)) {
+                logger.info("Dropping index {} on {}", LEGACY_RETENTION_INDEX_NAME, entityClass.getSimpleName());
+                indexOps.dropIndex(LEGACY_RETENTION_INDEX_NAME);
+            }
+            if (retention == null || retention.isZero() || retention.isNegative()) {
+                if (existing.contains(RETENTION_INDEX_NAME)) {
+                    logger.info("Resource retention disabled; dropping index {} on {}",
+                            RETENTION_INDEX_NAME, entityClass.getSimpleName());
+                    indexOps.dropIndex(RETENTION_INDEX_NAME);
+                }
+                return;
+            }
+            if (existing.contains(RETENTION_INDEX_NAME)) {
+                return;
+            }
+            // One-off migration when retention is enabled: documents written while it was not (or before expireAt was
+            // introduced) are given an expiration. The index is created only afterward, so it records that this is
+            // done, and later startups do not rescan the collection.
+            UpdateResult result = mongoOperations.getCollection(mongoOperations.getCollectionName(entityClass))
+                    .updateMany(
+                            new Document("expireAt", new Document("$exists", false)),
+                            List.of(new Document("$set", new Document("expireAt",
+                                    new Document("$add", List.of("$modifiedDate", retention.toMillis()))))));
+            if (result.getModifiedCount() > 0) {
+                logger.info("Set expireAt on {} existing {} documents",
+                        result.getModifiedCount(), entityClass.getSimpleName());
+            }
+            ensureIndex(entityClass, new Index()
+                    .on("expireAt", Sort.Direction.ASC)
+                    .named(RETENTION_INDEX_NAME)
+                    .expire(Duration.ZERO));
+        } catch (Exception e) {
+            logger.error("Failed to ensure resource retention", e);
+        }
+    }
+
+    private boolean isCollectionScan(Object plan) {
+        if (plan instanceof Document document) {
+            if ("COLLSCAN".equals(document.get("stage"))) {
+                return true;
+            }
+            return document.values().stream().anyMatch(this::isCollectionScan);
+        }
+        if (plan instanceof List<?> list) {
+            return list.stream().anyMatch(this::isCollectionScan);
+        }
+        return false;
+    }
+
+    private record EntityIndex(Class<?> entityClass, IndexDefinition index) {
+    }
+
+    /**
+     * A query's equality fields, plus the field it sorts on, if any.
+     */
+    private record QueryShape(Class<?> entityClass, String method, Sort sort, String... fields) {
+        public QueryShape(Class<?> entityClass, String method, String... fields) {
+            this(entityClass, method, Sort.unsorted(), fields);
+        }
+
+        /**
+         * Whether the query is served by the implicit index on _id, which is not declared in {@link #INDEXES}.
+         */
+        public boolean isIdLookup() {
+            return fields.length == 1 && "_id".equals(fields[0]) && sort.isUnsorted();
+        }
+
+        public Document getFilter() {
+            Document filter = new Document();
+            for (String field : fields) {
+                filter.append(field, "");
+            }
+            return filter;
+        }
+
+        public Document getSort() {
+            Document sort = new Document();
+            for (Sort.Order order : this.sort) {
+                sort.append(order.getProperty(), order.isAscending() ? 1 : -1);
+            }
+            return sort;
+        }
+
+        /**
+         * Whether the query's equality fields are exactly the leading fields of the index (in any order), followed by
+         * its sort fields.
+         */
+        public boolean isCoveredBy(IndexDefinition index) {
+            List<String> keys = new ArrayList<>(index.getIndexKeys().keySet());
+            List<String> sortFields = sort.stream().map(Sort.Order::getProperty).toList();
+            if (keys.size() < fields.length + sortFields.size()) {
+                return false;
+            }
+            return new HashSet<>(keys.subList(0, fields.length)).equals(Set.of(fields))
+                    && keys.subList(fields.length, fields.length + sortFields.size()).equals(sortFields);
+        }
+
+        @Override
+        public String toString() {
+            String shape = String.format("%s.%s(%s)", entityClass.getSimpleName(), method, String.join(", ", fields));
+            return sort.isSorted() ? shape + " sorted by " + sort : shape;
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package com.lantanagroup.link.measureeval.services;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Constant-time lookup of libraries by the identifiers that appear in CQL debug output and admin requests.
+ * Libraries are keyed by the last segment of their canonical URL (as used by the CQL engine), by full URL, by
+ * {@code url|version}, and by resource ID and name; when keys collide, the first library indexed wins.
+ */
+public class LibraryIndex implements LibraryResolver {
+    public static final LibraryIndex EMPTY = new LibraryIndex(Map.of());
+
+    private final Map<String, Library> librariesByKey;
+
+    private LibraryIndex(Map<String, Library> librariesByKey) {
+        this.librariesByKey = librariesByKey;
+    }
+
+    public static LibraryIndex of(Bundle bundle) {
+        List<Library> libraries = bundle.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .filter(Library.class::isInstance)
+                .map(Library.class::cast)
+                .toList();
+        Map<String, Library> librariesByKey = new HashMap<>();
+        // Index URL-based keys before the others so that they take precedence
+        for (Library library : libraries) {
+            if (!library.hasUrl()) {
+                continue;
+            }
+            String url = library.getUrl();
+            String name = url.substring(url.lastIndexOf('/') + 1);
+            librariesByKey.putIfAbsent(name, library);
+            librariesByKey.putIfAbsent(url, library);
+            if (library.hasVersion()) {
+                librariesByKey.putIfAbsent(name + "|" + library.getVersion(), library);
+                librariesByKey.putIfAbsent(url + "|" + library.getVersion(), library);
+            }
+        }
+        for (Library library : libraries) {
+            if (library.getIdElement().hasIdPart()) {
+                librariesByKey.putIfAbsent(library.getIdElement().getIdPart(), library);
+            }
+            if (library.hasName()) {
+                librariesByKey.putIfAbsent(library.getName(), library);
+            }
+        }
+        return new LibraryIndex(librariesByKey);
+    }
+
+    public static LibraryIndex merge(Collection<LibraryIndex> indexes) {
+        Map<String, Library> librariesByKey = new HashMap<>();
+        for (LibraryIndex index : indexes) {
+            index.librariesByKey.forEach(librariesByKey::putIfAbsent);
+        }
+        return new LibraryIndex(librariesByKey);
+    }
+
+    @Override
+    public Library resolve(String libraryId) {
+        return libraryId == null ? null : librariesByKey.get(libraryId);
+    }
+
+    public Library resolve(String url, String version) {
+        return version == null ? resolve(url) : resolve(url + "|" + version);
+    }
+}
@@ -1,12 +1,20 @@
 package com.lantanagroup.link.measureeval.services;
 
+import com.lantanagroup.link.shared.kafka.Priority;
+import com.lantanagroup.link.shared.utils.DiagnosticNames;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
 import io.opentelemetry.api.metrics.LongCounter;
 import io.opentelemetry.api.metrics.LongHistogram;
 import io.opentelemetry.api.metrics.Meter;
 import org.springframework.stereotype.Service;
 
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static io.opentelemetry.api.common.AttributeKey.stringKey;
+
 
 @Service
 public class MeasureEvalMetrics {
@@ -16,11 +24,16 @@ public class MeasureEvalMetrics {
   private final LongCounter measureEvaluatedCounter;
   private final LongCounter recordsReceivedCounter;
   private final LongHistogram evaluationDuration;
+  private final LongCounter evaluationBudgetOverrunCounter;
+  private final DoubleHistogram stageDuration;
+  private final DoubleHistogram cqlDefinitionDuration;
+  private final DoubleHistogram queueWaitDuration;
+  private final Meter meter;
 
   public MeasureEvalMetrics(OpenTelemetry openTelemetry)
   {
 
-    Meter meter = openTelemetry.getMeter("com.lantanagroup.link.measureeval.services.ResourceNormalizedConsumer");
+    meter = openTelemetry.getMeter("com.lantanagroup.link.measureeval.services.ResourceNormalizedConsumer");
 
     patientReportableCounter = meter
             .counterBuilder("Patient_Reportable_Counter")
@@ -39,6 +52,19 @@ public class MeasureEvalMetrics {
     evaluationDuration = meter.histogramBuilder("MeasureEval.evaluation.duration")
           .ofLongs()
           .setDescription("The duration of the evaluation of a measure").setUnit("ms").build();
+
+    evaluationBudgetOverrunCounter = meter.counterBuilder("MeasureEval.evaluation.budget.overruns")
+          .setDescription("The number of measure evaluations cancelled for exceeding their time budget").build();
+
+    // Recorded as a double because several stages routinely complete in well under a millisecond
+    stageDuration = meter.histogramBuilder("MeasureEval.consumer.stage.duration")
+          .setDescription("The duration of a stage of resource consumer processing").setUnit("ms").build();
+
+    cqlDefinitionDuration = meter.histogramBuilder("MeasureEval.cql.definition.duration")
+          .setDescription("The duration of the evaluation of a CQL definition in a profiled measure evaluation").setUnit("ms").build();
+
+    queueWaitDuration = meter.histogramBuilder("MeasureEval.consumer.queue.wait")
+          .setDescription("How long a consumed record waited to be processed").setUnit("ms").build();
   }
 
   public void IncrementPatientReportableCounter(Attributes attributes)
@@ -65,4 +91,82 @@ public class MeasureEvalMetrics {
     evaluationDuration.record(elapsedTime, attributes);
   }
 
+  void IncrementEvaluationBudgetOverrunCounter(Attributes attributes) {
+    evaluationBudgetOverrunCounter.add(1, attributes);
+  }
+
+  void StageDuration(String stage, long elapsedNanos, Attributes attributes) {
+    stageDuration.record(
+            elapsedNanos / 1_000_000.0,
+            attributes.toBuilder().put(stringKey(DiagnosticNames.STAGE), stage).build());
+  }
+
+  public void CqlDefinitionDuration(String library, String definition, long elapsedNanos, Attributes attributes) {
+    cqlDefinitionDuration.record(
+            elapsedNanos / 1_000_000.0,
+            attributes.toBuilder()
+                    .put(stringKey(DiagnosticNames.CQL_LIBRARY), library)
+                    .put(stringKey(DiagnosticNames.CQL_DEFINITION), definition)
+                    .build());
+  }
+
+  public void QueueWait(Priority priority, long waitNanos) {
+    queueWaitDuration.record(
+            waitNanos / 1_000_000.0,
+            Attributes.of(stringKey(DiagnosticNames.PRIORITY), priority.name()));
+  }
+
+  public void ObserveQueueSizes(Supplier<Map<Priority, Integer>> queueSizes) {
+    meter.gaugeBuilder("MeasureEval.consumer.queue.size")
+            .setDescription("The number of consumed records waiting to be processed")
+            .ofLongs()
+            .buildWithCallback(measurement -> queueSizes.get().forEach((priority, size) ->
+                    measurement.record(size, Attributes.of(stringKey(DiagnosticNames.PRIORITY), priority.name()))));
+  }
+
+  public void ObserveValueSetCacheSize(Supplier<Long> estimatedBytes) {
+    meter.gaugeBuilder("MeasureEval.valueset.cache.size")
+            .setDescription("The estimated size of cached ValueSet expansions")
+            .setUnit("By")
+            .ofLongs()
+            .buildWithCallback(measurement -> measurement.record(estimatedBytes.get()));
+  }
+
+  public void ObserveLibraryCache(Supplier<Long> size, Supplier<Long> hits) {
+    meter.gaugeBuilder("MeasureEval.library.cache.size")
+            .setDescription("The number of compiled libraries shared across measures")
+            .ofLongs()
+            .buildWithCallback(measurement -> measurement.record(size.get()));
+    meter.counterBuilder("MeasureEval.library.cache.hits")
+            .setDescription("The number of times a shared compiled library was used rather than compiling it")
+            .buildWithCallback(measurement -> measurement.record(hits.get()));
+  }
+
+  public void ObserveEvaluatorCache(
+          Supplier<Map<String, Long>> estimatedBytes, Supplier<Long> hits, Supplier<Long> misses, Supplier<Long> compilations) {
+    meter.gaugeBuilder("MeasureEval.evaluator.cache.size")
+            .setDescription("The estimated size of each cached measure evaluator")
+            .setUnit("By")
+            .ofLongs()
+            .buildWithCallback(measurement -> estimatedBytes.get().forEach((id, bytes) ->
+                    measurement.record(bytes, Attributes.of(stringKey(DiagnosticNames.REPORT_TYPE), id))));
+    meter.counterBuilder("MeasureEval.evaluator.cache.hits")
+            .setDescription("The number of times a cached measure evaluator was used")
+            .buildWithCallback(measurement -> measurement.record(hits.get()));
+    meter.counterBuilder("MeasureEval.evaluator.cache.misses")
+            .setDescription("The number of times a measure evaluator was not cached when needed")
+            .buildWithCallback(measurement -> measurement.record(misses.get()));
+    meter.counterBuilder("MeasureEval.evaluator.compilations")
+            .setDescription("The number of times a measure was compiled into an evaluator")
+            .buildWithCallback(measurement -> measurement.record(compilations.get()));
+  }
+
+  public void ObserveEvaluatorVersions(Supplier<Map<String, Long>> versions) {
+    meter.gaugeBuilder("MeasureEval.evaluator.version")
+            .setDescription("The version of each measure definition from which this instance is evaluating")
+            .ofLongs()
+            .buildWithCallback(measurement -> versions.get().forEach((id, version) ->
+                    measurement.record(version, Attributes.of(stringKey(DiagnosticNames.REPORT_TYPE), id))));
+  }
+
 }
@@ -3,15 +3,59 @@ package com.lantanagroup.link.measureeval.services;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.parser.IParser;
+import com.lantanagroup.link.measureeval.repositories.IndexedFhirRepository;
 import com.lantanagroup.link.measureeval.repositories.LinkInMemoryFhirRepository;
 import com.lantanagroup.link.measureeval.utils.ParametersUtils;
 import com.lantanagroup.link.measureeval.utils.StreamUtils;
 import lombok.Getter;
+import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.LibraryBuilder;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.TypeBuilder;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.cqframework.cql.elm.IdObjectFactory;
+import org.cqframework.cql.elm.serializing.ElmLibraryReader;
+import org.cqframework.cql.elm.serializing.ElmLibraryReaderFactory;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.cql.model.ChoiceType;
+import org.hl7.cql.model.DataType;
+import org.hl7.cql.model.IntervalType;
+import org.hl7.cql.model.ListType;
+import org.hl7.cql.model.ModelIdentifier;
+import org.hl7.cql.model.TupleType;
+import org.hl7.cql.model.TupleTypeElement;
+import org.hl7.elm.r1.ChoiceTypeSpecifier;
+import org.hl7.elm.r1.Element;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.FunctionDef;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.IntervalTypeSpecifier;
+import org.hl7.elm.r1.ListTypeSpecifier;
+import org.hl7.elm.r1.NamedTypeSpecifier;
+import org.hl7.elm.r1.OperandDef;
+import org.hl7.elm.r1.ParameterDef;
+import org.hl7.elm.r1.TupleElementDefinition;
+import org.hl7.elm.r1.TupleTypeSpecifier;
+import org.hl7.elm.r1.TypeSpecifier;
+import org.hl7.elm.r1.UsingDef;
+import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.r4.model.*;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.cql.engine.execution.Libraries;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cql.Engines;
 import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.fhir.cql.VersionedIdentifiers;
 import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings;
+import org.opencds.cqf.fhir.cql.engine.terminology.RepositoryTerminologyProvider;
 import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureService;
@@ -19,25 +63,42 @@ import org.opencds.cqf.fhir.utility.monad.Eithers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
-import java.util.Date;
-import java.util.List;
-import java.util.TimeZone;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public class MeasureEvaluator {
     private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluator.class);
+    private static final String MEASUREMENT_PERIOD = "Measurement Period";
+
+    // Parsed FHIR resources and ELM trees occupy several times the size of their JSON
+    private static final long OBJECT_TO_JSON_RATIO = 4L;
 
     private final FhirContext fhirContext;
     private final MeasureEvaluationOptions options;
     @Getter
     private final Bundle bundle;
+    @Getter
+    private final LibraryIndex libraryIndex;
     private final Measure measure;
+    private final Set<VersionedIdentifier> librariesLoadedFromElm;
+    // The length of the ELM JSON from which libraries were loaded, which is kept for estimateRetainedBytes
+    private final long elmLength;
 
     private MeasureEvaluator(FhirContext fhirContext, Bundle bundle) {
-        this(fhirContext, bundle, false);
+        this(fhirContext, bundle, false, null, null, null);
     }
 
-    private MeasureEvaluator(FhirContext fhirContext, Bundle bundle, boolean isDebug) {
+    private MeasureEvaluator(
+            FhirContext fhirContext,
+            Bundle bundle,
+            boolean isDebug,
+            ValueSetExpansionCache valueSetExpansionCache,
+            CompiledLibraryCache compiledLibraryCache,
+            Map<VersionedIdentifier, String> elm) {
         if (fhirContext.getVersion().getVersion() != FhirVersionEnum.R4) {
             logger.error("Unsupported FHIR version! Expected R4 found {}",
                     fhirContext.getVersion().getVersion().getFhirVersionString());
@@ -57,6 +118,28 @@ public class MeasureEvaluator {
                 .setSearchParameterMode(RetrieveSettings.SEARCH_FILTER_MODE.FILTER_IN_MEMORY)
                 .setProfileMode(RetrieveSettings.PROFILE_MODE.DECLARED);
         evaluationSettings.getCqlOptions().getCqlEngineOptions().setDebugLoggingEnabled(isDebug);
+        if (valueSetExpansionCache != null) {
+            evaluationSettings.setValueSetCache(valueSetExpansionCache.viewOf(fhirContext, bundle));
+        }
+        if (compiledLibraryCache != null) {
+            evaluationSettings.setModelCache(compiledLibraryCache.getModelCache());
+        }
+        Map<VersionedIdentifier, CompiledLibrary> elmLibraries =
+                elm == null ? Map.of() : loadElm(new ModelManager(evaluationSettings.getModelCache()), elm);
+        librariesLoadedFromElm = Set.copyOf(elmLibraries.keySet());
+        elmLength = librariesLoadedFromElm.stream().mapToLong(identifier -> elm.get(identifier).length()).sum();
+        Map<VersionedIdentifier, CompiledLibrary> localLibraries = new HashMap<>();
+        elmLibraries.forEach((identifier, library) -> {
+            localLibraries.put(identifier, library);
+            // The engine omits the version when the measure references the library without one
+            localLibraries.put(new VersionedIdentifier().withId(identifier.getId()), library);
+        });
+        if (compiledLibraryCache != null) {
+            // Libraries loaded from ELM are kept to this evaluator; only translated libraries are shared
+            evaluationSettings.setLibraryCache(compiledLibraryCache.viewOf(fhirContext, bundle, localLibraries));
+        } else {
+            evaluationSettings.getLibraryCache().putAll(localLibraries);
+        }
 
         this.bundle = bundle;
         if (!this.bundle.hasEntry()) {
@@ -74,39 +157,351 @@ public class MeasureEvaluator {
             logger.error("Error encountered during Measure evaluation: {}", e.getMessage());
             throw e;
         }
+        libraryIndex = LibraryIndex.of(bundle);
     }
 
     public static MeasureEvaluator compile(FhirContext fhirContext, Bundle bundle, boolean isDebug) {
-        MeasureEvaluator instance = new MeasureEvaluator(fhirContext, bundle, isDebug);
+        return compile(fhirContext, bundle, isDebug, null, null, null);
+    }
+
+    /**
+     * Compiles a measure, sharing ValueSet expansions with other measures through the given cache.
+     * Without a cache, expansions are shared only among this evaluator's evaluations.
+     */
+    public static MeasureEvaluator compile(
+            FhirContext fhirContext,
+            Bundle bundle,
+            boolean isDebug,
+            ValueSetExpansionCache valueSetExpansionCache) {
+        return compile(fhirContext, bundle, isDebug, valueSetExpansionCache, null, null);
+    }
+
+    /**
+     * Compiles a measure, loading previously translated ELM (as returned by {@link #getElm()}) for the libraries it
+     * covers rather than translating their CQL. The ELM must have been produced by the same translator version.
+     * Libraries and models are shared with other measures through the given cache, if any.
+     */
+    public static MeasureEvaluator compile(
+            FhirContext fhirContext,
+            Bundle bundle,
+            boolean isDebug,
+            ValueSetExpansionCache valueSetExpansionCache,
+            CompiledLibraryCache compiledLibraryCache,
+            Map<VersionedIdentifier, String> elm) {
+        MeasureEvaluator instance = new MeasureEvaluator(
+                fhirContext, bundle, isDebug, valueSetExpansionCache, compiledLibraryCache, elm);
         instance.compile();
         return instance;
     }
 
+    /**
+     * Translates a measure's libraries for {@link #getElm()}, without otherwise compiling the measure (i.e., without
+     * expanding its ValueSets or evaluating it). The evaluator returned is not suitable for evaluation.
+     * Libraries are shared with other measures through the given cache, if any.
+     */
+    public static MeasureEvaluator translate(
+            FhirContext fhirContext,
+            Bundle bundle,
+            CompiledLibraryCache compiledLibraryCache) {
+        MeasureEvaluator instance = new MeasureEvaluator(fhirContext, bundle, false, null, compiledLibraryCache, null);
+        instance.translate();
+        return instance;
+    }
+
+    private void translate() {
+        logger.info("Translating measure: {}", measure.getUrl());
+        Repository repository = new LinkInMemoryFhirRepository(fhirContext, bundle);
+        CqlEngine engine = Engines.forRepositoryAndSettings(options.getEvaluationSettings(), repository, null);
+        addLibraries(engine, VersionedIdentifiers.forUrl(measure.getLibrary().get(0).getValue()), new ArrayList<>());
+    }
+
     private void compile() {
         logger.info("Compiling measure: {}", measure.getUrl());
+        expandValueSets();
         String subject = "Patient/the-patient";
         Patient patient = new Patient();
         patient.setId(subject);
         Bundle additionalData = new Bundle();
         additionalData.addEntry().setResource(patient);
-        doEvaluate(null, null, new StringType(subject), additionalData);
+        doEvaluate(null, null, new StringType(subject), index(additionalData));
     }
 
-    public static MeasureReport compileAndEvaluate(FhirContext fhirContext, Bundle bundle, Parameters parameters, boolean isDebug) {
-        MeasureEvaluator evaluator = new MeasureEvaluator(fhirContext, bundle, isDebug);
-        DateTimeType periodStart = ParametersUtils.getValue(parameters, "periodStart", DateTimeType.class);
-        DateTimeType periodEnd = ParametersUtils.getValue(parameters, "periodEnd", DateTimeType.class);
-        StringType subject = ParametersUtils.getValue(parameters, "subject", StringType.class);
-        Bundle additionalData = ParametersUtils.getResource(parameters, "additionalData", Bundle.class);
-        return evaluator.doEvaluate(periodStart, periodEnd, subject, additionalData);
+    /**
+     * Gets the ELM JSON of the bundle's libraries as translated when this evaluator was compiled, by library identifier.
+     * The result type of each definition is recorded as a type specifier (see {@link #restoreResultTypes}) on a copy of
+     * the library, read back from its JSON, since the compiled library may be shared with other evaluators.
+     */
+    public Map<VersionedIdentifier, String> getElm() throws IOException {
+        Set<VersionedIdentifier> bundleLibraries = bundle.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .filter(Library.class::isInstance)
+                .map(Library.class::cast)
+                .map(library -> new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()))
+                .collect(Collectors.toSet());
+        Map<VersionedIdentifier, String> elm = new HashMap<>();
+        TypeBuilder typeBuilder = new TypeBuilder(
+                new IdObjectFactory(), new ModelManager(options.getEvaluationSettings().getModelCache()));
+        ElmLibraryReader reader = ElmLibraryReaderFactory.getReader(LibraryContentType.JSON.mimeType());
+        // The engine caches each library under several identifiers
+        Set<CompiledLibrary> compiledLibraries = Collections.newSetFromMap(new IdentityHashMap<>());
+        compiledLibraries.addAll(options.getEvaluationSettings().getLibraryCache().values());
+        for (CompiledLibrary compiledLibrary : compiledLibraries) {
+            VersionedIdentifier identifier = new VersionedIdentifier()
+                    .withId(compiledLibrary.getIdentifier().getId())
+                    .withVersion(compiledLibrary.getIdentifier().getVersion());
+            if (bundleLibraries.contains(identifier) && !elm.containsKey(identifier)) {
+                org.hl7.elm.r1.Library library = compiledLibrary.getLibrary();
+                org.hl7.elm.r1.Library copy = reader.read(CqlTranslator.convertToJson(library));
+                addResultTypeSpecifiers(library, copy, typeBuilder);
+                elm.put(identifier, CqlTranslator.convertToJson(copy));
+            }
+        }
+        return elm;
+    }
+
+    /**
+     * Records the result type of each of the library's definitions on the copy's corresponding definition as a type
+     * specifier, so that it survives serialization; see {@link #restoreResultTypes}.
+     * Definitions that already have a type specifier are left unchanged.
+     */
+    private static void addResultTypeSpecifiers(
+            org.hl7.elm.r1.Library library, org.hl7.elm.r1.Library copy, TypeBuilder typeBuilder) {
+        List<Element> defs = getDefs(library);
+        List<Element> copiedDefs = getDefs(copy);
+        if (copiedDefs.size() != defs.size()) {
+            throw new IllegalStateException(String.format(
+                    "Library %s does not match its ELM", library.getIdentifier().getId()));
+        }
+        for (int index = 0; index < defs.size(); index++) {
+            Element def = defs.get(index);
+            Element copiedDef = copiedDefs.get(index);
+            if (copiedDef.getResultTypeSpecifier() == null && def.getResultType() != null) {
+                copiedDef.setResultTypeSpecifier(typeBuilder.dataTypeToTypeSpecifier(def.getResultType()));
+            }
+        }
+    }
+
+    /**
+     * Restores the result types of the library's definitions and function operands from their type specifiers.
+     * The ELM reader does not restore result types, but the translator requires them of any library it compiles
+     * against (e.g., to resolve function calls into the library), and will not register functions without them.
+     */
+    private static void restoreResultTypes(org.hl7.elm.r1.Library library, ModelManager modelManager) {
+        Map<String, Model> modelsByUrl = new HashMap<>();
+        if (library.getUsings() != null) {
+            for (UsingDef usingDef : library.getUsings().getDef()) {
+                Model model = modelManager.resolveModel(new ModelIdentifier()
+                        .withId(usingDef.getLocalIdentifier())
+                        .withVersion(usingDef.getVersion()));
+                modelsByUrl.put(model.getModelInfo().getUrl(), model);
+            }
+        }
+        for (Element def : getDefs(library)) {
+            if (def instanceof FunctionDef functionDef) {
+                for (OperandDef operandDef : functionDef.getOperand()) {
+                    operandDef.setResultType(toDataType(operandDef.getOperandTypeSpecifier(), modelsByUrl));
+                }
+            }
+            if (def.getResultTypeSpecifier() != null) {
+                def.setResultType(toDataType(def.getResultTypeSpecifier(), modelsByUrl));
+            }
+        }
+    }
+
+    private static List<Element> getDefs(org.hl7.elm.r1.Library library) {
+        List<Element> defs = new ArrayList<>();
+        if (library.getCodeSystems() != null) {
+            defs.addAll(library.getCodeSystems().getDef());
+        }
+        if (library.getValueSets() != null) {
+            defs.addAll(library.getValueSets().getDef());
+        }
+        if (library.getCodes() != null) {
+            defs.addAll(library.getCodes().getDef());
+        }
+        if (library.getConcepts() != null) {
+            defs.addAll(library.getConcepts().getDef());
+        }
+        if (library.getParameters() != null) {
+            defs.addAll(library.getParameters().getDef());
+        }
+        if (library.getStatements() != null) {
+            defs.addAll(library.getStatements().getDef());
+        }
+        return defs;
+    }
+
+    private static DataType toDataType(TypeSpecifier typeSpecifier, Map<String, Model> modelsByUrl) {
+        if (typeSpecifier == null) {
+            return null;
+        }
+        if (typeSpecifier instanceof NamedTypeSpecifier named) {
+            QName name = named.getName();
+            Model model = modelsByUrl.get(name.getNamespaceURI());
+            if (model == null) {
+                throw new IllegalArgumentException(String.format("Unknown model: %s", name.getNamespaceURI()));
+            }
+            DataType dataType = model.resolveTypeName(name.getLocalPart());
+            if (dataType == null) {
+                dataType = model.resolveTypeName(model.getModelInfo().getName() + "." + name.getLocalPart());
+            }
+            if (dataType == null) {
+                throw new IllegalArgumentException(String.format("Unknown type: %s", name));
+            }
+            return dataType;
+        }
+        if (typeSpecifier instanceof ListTypeSpecifier list) {
+            return new ListType(toDataType(list.getElementType(), modelsByUrl));
+        }
+        if (typeSpecifier instanceof IntervalTypeSpecifier interval) {
+            return new IntervalType(toDataType(interval.getPointType(), modelsByUrl));
+        }
+        if (typeSpecifier instanceof TupleTypeSpecifier tuple) {
+            List<TupleTypeElement> elements = new ArrayList<>();
+            for (TupleElementDefinition element : tuple.getElement()) {
+                TypeSpecifier elementType = element.getElementType() != null ? element.getElementType() : element.getType();
+                elements.add(new TupleTypeElement(element.getName(), toDataType(elementType, modelsByUrl)));
+            }
+            return new TupleType(elements);
+        }
+        if (typeSpecifier instanceof ChoiceTypeSpecifier choice) {
+            List<DataType> types = new ArrayList<>();
+            for (TypeSpecifier type : choice.getChoice().isEmpty() ? choice.getType() : choice.getChoice()) {
+                types.add(toDataType(type, modelsByUrl));
+            }
+            return new ChoiceType(types);
+        }
+        throw new IllegalArgumentException(String.format("Unsupported type specifier: %s", typeSpecifier));
+    }
+
+    /**
+     * Estimates the heap retained by this evaluator: its measure bundle and the libraries it loaded from ELM, as a
+     * multiple of their JSON size. Libraries translated from CQL are held by {@link CompiledLibraryCache} and shared
+     * with other evaluators, so they are not counted against any one of them. ValueSets, whose expansions are accounted
+     * for by {@link ValueSetExpansionCache}, are not counted either.
+     */
+    public long estimateRetainedBytes() {
+        IParser parser = fhirContext.newJsonParser();
+        long jsonLength = elmLength;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.hasResource() && !(entry.getResource() instanceof ValueSet)) {
+                jsonLength += parser.encodeResourceToString(entry.getResource()).length();
+            }
+        }
+        return OBJECT_TO_JSON_RATIO * jsonLength;
+    }
+
+    /**
+     * Gets the ValueSet expansions made by this evaluator, by the engine's key: canonical URL, optionally followed by a
+     * pipe and version.
+     */
+    public Map<String, List<Code>> getValueSetExpansions() {
+        return new HashMap<>(options.getEvaluationSettings().getValueSetCache());
+    }
+
+    /**
+     * Gets the identifiers of the libraries that were loaded from ELM rather than translated from CQL.
+     */
+    Set<VersionedIdentifier> getLibrariesLoadedFromElm() {
+        return librariesLoadedFromElm;
+    }
+
+    public static String getTranslatorVersion() {
+        return LibraryBuilder.class.getPackage().getImplementationVersion();
+    }
+
+    /**
+     * Reads compiled libraries from ELM JSON, returning those that could be loaded by identifier.
+     * The translator's own ELM loading is not used, since the ELM reader does not restore the result types it requires
+     * and so it always falls back to translating CQL; result types are instead restored here from the type specifiers
+     * that {@link #getElm()} records.
+     */
+    private static Map<VersionedIdentifier, CompiledLibrary> loadElm(
+            ModelManager modelManager, Map<VersionedIdentifier, String> elm) {
+        ElmLibraryReader reader = ElmLibraryReaderFactory.getReader(LibraryContentType.JSON.mimeType());
+        Map<VersionedIdentifier, CompiledLibrary> loaded = new HashMap<>();
+        elm.forEach((identifier, content) -> {
+            try {
+                org.hl7.elm.r1.Library library = reader.read(content);
+                restoreResultTypes(library, modelManager);
+                CompiledLibrary compiledLibrary = new CompiledLibrary();
+                compiledLibrary.setLibrary(library);
+                compiledLibrary.setIdentifier(library.getIdentifier());
+                if (library.getUsings() != null) {
+                    library.getUsings().getDef().forEach(compiledLibrary::add);
+                }
+                if (library.getIncludes() != null) {
+                    library.getIncludes().getDef().forEach(compiledLibrary::add);
+                }
+                if (library.getCodeSystems() != null) {
+                    library.getCodeSystems().getDef().forEach(compiledLibrary::add);
+                }
+                if (library.getValueSets() != null) {
+                    library.getValueSets().getDef().forEach(compiledLibrary::add);
+                }
+                if (library.getCodes() != null) {
+                    library.getCodes().getDef().forEach(compiledLibrary::add);
+                }
+                if (library.getConcepts() != null) {
+                    library.getConcepts().getDef().forEach(compiledLibrary::add);
+                }
+                if (library.getParameters() != null) {
+                    library.getParameters().getDef().forEach(compiledLibrary::add);
+                }
+                if (library.getStatements() != null) {
+                    library.getStatements().getDef().forEach(compiledLibrary::add);
+                }
+                loaded.put(identifier, compiledLibrary);
+            } catch (Exception e) {
+                // The engine translates the library's CQL instead
+                logger.warn("Failed to load ELM for library {}: {}", identifier.getId(), e.getMessage());
+            }
+        });
+        return loaded;
+    }
+
+    /**
+     * Expands the bundle's ValueSets into the evaluation settings' cache so that evaluations do not pay for expansion.
+     * The expansions are made by the same terminology provider the engine uses, and so are keyed and sorted as it
+     * expects.
+     */
+    private void expandValueSets() {
+        EvaluationSettings evaluationSettings = options.getEvaluationSettings();
+        TerminologyProvider terminologyProvider = new RepositoryTerminologyProvider(
+                new LinkInMemoryFhirRepository(fhirContext, bundle),
+                evaluationSettings.getValueSetCache(),
+                evaluationSettings.getTerminologySettings());
+        bundle.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .filter(ValueSet.class::isInstance)
+                .map(ValueSet.class::cast)
+                .filter(ValueSet::hasUrl)
+                .forEach(valueSet -> {
+                    try {
+                        terminologyProvider.expand(new ValueSetInfo().withId(valueSet.getUrl()));
+                    } catch (Exception e) {
+                        // Evaluation will fail in the same way if the ValueSet is used
+                        logger.warn("Failed to expand ValueSet {}: {}", valueSet.getUrl(), e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Indexes a patient's data for a single evaluation. Callers that evaluate several measures for the same patient
+     * should instead create one {@link IndexedFhirRepository} and pass it to each evaluation.
+     */
+    private IndexedFhirRepository index(Bundle additionalData) {
+        return additionalData == null ? null : new IndexedFhirRepository(fhirContext, additionalData);
     }
 
     private MeasureReport doEvaluate(
             DateTimeType periodStart,
             DateTimeType periodEnd,
             StringType subject,
-            Bundle additionalData) {
-        Repository repository = new LinkInMemoryFhirRepository(fhirContext, bundle);
+            IndexedFhirRepository patientData) {
+        // The patient's data is indexed once and layered under the measure's resources rather than passed to the engine
+        // as additional data, which it would index again for every evaluation
+        Repository repository = new LinkInMemoryFhirRepository(fhirContext, bundle, patientData);
         R4MeasureService measureService = new R4MeasureService(repository, options);
         return measureService.evaluate(
                 Eithers.forRight3(measure),
@@ -118,19 +513,23 @@ public class MeasureEvaluator {
                 null,
                 null,
                 null,
-                additionalData,
+                null,
                 null,
                 null,
                 null);
     }
 
     public MeasureReport evaluate(Date periodStart, Date periodEnd, String patientId, Bundle additionalData) {
+        return evaluate(periodStart, periodEnd, patientId, index(additionalData));
+    }
+
+    public MeasureReport evaluate(Date periodStart, Date periodEnd, String patientId, IndexedFhirRepository patientData) {
         TimeZone utc = TimeZone.getTimeZone(ZoneOffset.UTC);
         return evaluate(
                 new DateTimeType(periodStart, TemporalPrecisionEnum.MILLI, utc),
                 new DateTimeType(periodEnd, TemporalPrecisionEnum.MILLI, utc),
                 new StringType(new IdType(ResourceType.Patient.name(), patientId).getValue()),
-                additionalData);
+                patientData);
     }
 
     public MeasureReport evaluate(Parameters parameters) {
@@ -146,7 +545,15 @@ public class MeasureEvaluator {
             DateTimeType periodEnd,
             StringType subject,
             Bundle additionalData) {
-        List<Bundle.BundleEntryComponent> entries = additionalData.getEntry();
+        return evaluate(periodStart, periodEnd, subject, index(additionalData));
+    }
+
+    public MeasureReport evaluate(
+            DateTimeType periodStart,
+            DateTimeType periodEnd,
+            StringType subject,
+            IndexedFhirRepository patientData) {
+        List<Bundle.BundleEntryComponent> entries = patientData == null ? List.of() : patientData.getBundle().getEntry();
 
         logger.debug(
                 "Evaluating measure: MEASURE=[{}] START=[{}] END=[{}] SUBJECT=[{}] RESOURCES=[{}]",
@@ -155,7 +562,7 @@ public class MeasureEvaluator {
         // Output debug/trace information about the results of the evaluation
         if (logger.isTraceEnabled()) {
             // Output the group/population counts
-            for (MeasureReport.MeasureReportGroupComponent group : doEvaluate(periodStart, periodEnd, subject, additionalData).getGroup()) {
+            for (MeasureReport.MeasureReportGroupComponent group : doEvaluate(periodStart, periodEnd, subject, patientData).getGroup()) {
                 logger.trace("Group {}: {}", group.getId(), group.getPopulation().size());
                 for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
                     logger.trace("Population {}: {}", population.getCode().getCodingFirstRep().getDisplay(), population.getCount());
@@ -168,6 +575,137 @@ public class MeasureEvaluator {
                 logger.trace("Resource {}: {}/{}", entryIndex, resource.getResourceType(), resource.getIdPart());
             }
         }
-        return doEvaluate(periodStart, periodEnd, subject, additionalData);
+        return doEvaluate(periodStart, periodEnd, subject, patientData);
+    }
+
+    public CqlProfile profile(Date periodStart, Date periodEnd, String patientId, Bundle additionalData) {
+        return profile(periodStart, periodEnd, patientId, index(additionalData));
+    }
+
+    public CqlProfile profile(Date periodStart, Date periodEnd, String patientId, IndexedFhirRepository patientData) {
+        TimeZone utc = TimeZone.getTimeZone(ZoneOffset.UTC);
+        return profile(
+                new DateTimeType(periodStart, TemporalPrecisionEnum.MILLI, utc),
+                new DateTimeType(periodEnd, TemporalPrecisionEnum.MILLI, utc),
+                new StringType(new IdType(ResourceType.Patient.name(), patientId).getValue()),
+                patientData);
+    }
+
+    public CqlProfile profile(Parameters parameters) {
+        DateTimeType periodStart = ParametersUtils.getValue(parameters, "periodStart", DateTimeType.class);
+        DateTimeType periodEnd = ParametersUtils.getValue(parameters, "periodEnd", DateTimeType.class);
+        StringType subject = ParametersUtils.getValue(parameters, "subject", StringType.class);
+        Bundle additionalData = ParametersUtils.getResource(parameters, "additionalData", Bundle.class);
+        return profile(periodStart, periodEnd, subject, additionalData);
+    }
+
+    public CqlProfile profile(
+            DateTimeType periodStart,
+            DateTimeType periodEnd,
+            StringType subject,
+            Bundle additionalData) {
+        return profile(periodStart, periodEnd, subject, index(additionalData));
+    }
+
+    /**
+     * Profiles an evaluation by evaluating each CQL definition of the measure's libraries in turn, timing each one.
+     * This is a separate pass over the patient's data, made in addition to (rather than instead of) an evaluation.
+     * <p>
+     * Libraries are profiled after the libraries they include, and definitions in the order they are declared. The
+     * engine caches each definition's result, so a definition's time excludes definitions profiled before it, but
+     * includes those it references that are declared after it. Functions are not profiled on their own; their time is
+     * attributed to the definitions that call them.
+     */
+    public CqlProfile profile(
+            DateTimeType periodStart,
+            DateTimeType periodEnd,
+            StringType subject,
+            IndexedFhirRepository patientData) {
+        Repository repository = new LinkInMemoryFhirRepository(fhirContext, bundle, patientData);
+        CqlEngine engine = Engines.forRepositoryAndSettings(options.getEvaluationSettings(), repository, null);
+        IdType subjectId = new IdType(subject.getValue());
+        Pair<String, Object> context = Pair.of(
+                Objects.requireNonNullElse(subjectId.getResourceType(), ResourceType.Patient.name()),
+                subjectId.getIdPart());
+
+        List<org.hl7.elm.r1.Library> libraries = new ArrayList<>();
+        addLibraries(engine, VersionedIdentifiers.forUrl(measure.getLibrary().get(0).getValue()), libraries);
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(MEASUREMENT_PERIOD,
+                getMeasurementPeriod(libraries.get(libraries.size() - 1), periodStart, periodEnd));
+
+        List<CqlProfile.Entry> entries = new ArrayList<>();
+        for (org.hl7.elm.r1.Library library : libraries) {
+            if (library.getStatements() == null) {
+                continue;
+            }
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                if (def instanceof FunctionDef) {
+                    continue;
+                }
+                String error = null;
+                long start = System.nanoTime();
+                try {
+                    engine.evaluate(library.getIdentifier().getId(), Set.of(def.getName()), context, parameters);
+                } catch (Exception e) {
+                    error = e.getMessage();
+                }
+                entries.add(new CqlProfile.Entry(
+                        library.getIdentifier().getId(), def.getName(), System.nanoTime() - start, error));
+            }
+        }
+        return new CqlProfile(entries);
+    }
+
+    /**
+     * Adds a library to the list after the libraries it includes, unless it is already in the list.
+     */
+    private static void addLibraries(
+            CqlEngine engine, VersionedIdentifier identifier, List<org.hl7.elm.r1.Library> libraries) {
+        org.hl7.elm.r1.Library library = engine.getEnvironment().getLibraryManager()
+                .resolveLibrary(identifier)
+                .getLibrary();
+        if (libraries.stream().anyMatch(added -> added.getIdentifier().getId().equals(library.getIdentifier().getId()))) {
+            return;
+        }
+        if (library.getIncludes() != null) {
+            for (IncludeDef includeDef : library.getIncludes().getDef()) {
+                addLibraries(engine, Libraries.toVersionedIdentifier(includeDef), libraries);
+            }
+        }
+        libraries.add(library);
+    }
+
+    /**
+     * Gets the measurement period as the measure's primary library declares it, which may be an interval of dates
+     * rather than date/times.
+     */
+    private static Interval getMeasurementPeriod(
+            org.hl7.elm.r1.Library library,
+            DateTimeType periodStart,
+            DateTimeType periodEnd) {
+        if (periodStart == null || periodEnd == null) {
+            return null;
+        }
+        boolean isDate = false;
+        if (library.getParameters() != null) {
+            for (ParameterDef parameterDef : library.getParameters().getDef()) {
+                if (MEASUREMENT_PERIOD.equals(parameterDef.getName())
+                        && parameterDef.getParameterTypeSpecifier() instanceof IntervalTypeSpecifier interval
+                        && interval.getPointType() instanceof NamedTypeSpecifier pointType) {
+                    isDate = "Date".equals(pointType.getName().getLocalPart());
+                }
+            }
+        }
+        return new Interval(
+                toCqlValue(periodStart, isDate), true,
+                toCqlValue(periodEnd, isDate), true);
+    }
+
+    private static Object toCqlValue(DateTimeType value, boolean isDate) {
+        OffsetDateTime dateTime = OffsetDateTime.ofInstant(value.getValue().toInstant(), ZoneOffset.UTC);
+        return isDate
+                ? new org.opencds.cqf.cql.engine.runtime.Date(dateTime.toLocalDate())
+                : new org.opencds.cqf.cql.engine.runtime.DateTime(dateTime, Precision.MILLISECOND);
     }
 }
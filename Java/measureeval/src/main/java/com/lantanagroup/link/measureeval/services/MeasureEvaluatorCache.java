@@ -4,48 +4,474 @@ import ca.uhn.fhir.context.FhirContext;
 import com.lantanagroup.link.measureeval.configs.LinkConfig;
 import com.lantanagroup.link.measureeval.entities.MeasureDefinition;
 import com.lantanagroup.link.measureeval.repositories.MeasureDefinitionRepository;
-import com.lantanagroup.link.measureeval.utils.CqlUtils;
+import org.apache.commons.collections4.map.PassiveExpiringMap;
+import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.r4.model.Library;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Compiles measures on demand and caches their evaluators by measure definition ID.
+ * <p>
+ * Each evaluator is tagged with the version of the measure definition it was compiled from. When a measure definition
+ * changes (on any replica; see {@link #refresh}), the new version is compiled in the background while the old
+ * evaluator continues to serve, and is swapped in once ready.
+ * <p>
+ * The estimated size of the cached evaluators is bounded; least recently used evaluators are evicted beyond that bound
+ * and are compiled again (from their snapshots, if any) on next use.
+ */
 @Service
 public class MeasureEvaluatorCache implements LibraryResolver {
+    private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluatorCache.class);
+    // How often a cached evaluator's use is recorded on its snapshot, which orders restoration after a restart
+    private static final long TOUCH_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
     private final FhirContext fhirContext;
     private final MeasureDefinitionRepository definitionRepository;
-    private final Map<String, MeasureEvaluator> instancesById = new ConcurrentHashMap<>();
+    private final Map<String, Entry> instancesById = new ConcurrentHashMap<>();
+    // The latest version of each measure definition announced to this instance; see refresh
+    private final Map<String, Long> announcedVersionsById = new ConcurrentHashMap<>();
+    private final Map<String, MeasureEvaluator> debugInstancesById;
+    // Library indexes of measures that are not compiled, so that $cql requests need not reload their definitions
+    private final Map<String, LibraryIndex> uncompiledLibraryIndexesById = new ConcurrentHashMap<>();
     private final LinkConfig linkConfig;
+    private final ValueSetExpansionCache valueSetExpansionCache;
+    private final CompiledLibraryCache compiledLibraryCache;
+    private final EvaluatorSnapshotStore snapshotStore;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "evaluator-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long maxBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compilations = new AtomicLong();
+    private volatile LibraryIndex libraryIndex = LibraryIndex.EMPTY;
+
+    @Autowired
+    public MeasureEvaluatorCache(FhirContext fhirContext, MeasureDefinitionRepository definitionRepository, LinkConfig linkConfig,
+                                 ValueSetExpansionCache valueSetExpansionCache, CompiledLibraryCache compiledLibraryCache,
+                                 EvaluatorSnapshotStore snapshotStore, MeasureEvalMetrics measureEvalMetrics) {
+        this(fhirContext, definitionRepository, linkConfig, valueSetExpansionCache, compiledLibraryCache, snapshotStore);
+        measureEvalMetrics.ObserveEvaluatorVersions(this::getVersions);
+        measureEvalMetrics.ObserveEvaluatorCache(this::getEstimatedBytesById, hits::get, misses::get, compilations::get);
+    }
 
-    public MeasureEvaluatorCache(FhirContext fhirContext, MeasureDefinitionRepository definitionRepository, LinkConfig linkConfig) {
+    public MeasureEvaluatorCache(FhirContext fhirContext, MeasureDefinitionRepository definitionRepository, LinkConfig linkConfig,
+                                 ValueSetExpansionCache valueSetExpansionCache, CompiledLibraryCache compiledLibraryCache,
+                                 EvaluatorSnapshotStore snapshotStore) {
         this.fhirContext = fhirContext;
         this.definitionRepository = definitionRepository;
         this.linkConfig = linkConfig;
+        this.valueSetExpansionCache = valueSetExpansionCache;
+        this.compiledLibraryCache = compiledLibraryCache;
+        this.snapshotStore = snapshotStore;
+        this.maxBytes = linkConfig.getEvaluatorCacheSize().toBytes();
+        this.debugInstancesById = Collections.synchronizedMap(new PassiveExpiringMap<>(
+                linkConfig.getDebugEvaluatorIdleTimeout().toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    private Entry compile(String id, boolean isDebug) {
+        MeasureDefinition measureDefinition = definitionRepository.findById(id).orElse(null);
+        if (measureDefinition == null) {
+            return null;
+        }
+        compilations.incrementAndGet();
+        long version = measureDefinition.getVersion();
+        MeasureEvaluator instance;
+        EvaluatorSnapshotStore.Snapshot snapshot = snapshotStore.read(id, version);
+        if (snapshot != null) {
+            logger.info("Compiling measure definition {} from snapshot", id);
+            valueSetExpansionCache.viewOf(fhirContext, measureDefinition.getBundle()).putAll(snapshot.valueSetCodes());
+            instance = MeasureEvaluator.compile(
+                    fhirContext, measureDefinition.getBundle(), isDebug, valueSetExpansionCache, compiledLibraryCache,
+                    fromElm(snapshot.elm()));
+        } else {
+            instance = MeasureEvaluator.compile(
+                    fhirContext, measureDefinition.getBundle(), isDebug, valueSetExpansionCache, compiledLibraryCache,
+                    getElm(measureDefinition));
+            snapshotStore.write(id, version, instance);
+        }
+        return new Entry(version, instance);
+    }
+
+    /**
+     * Compiles the measures that have snapshots, so that after a restart they are ready before they are first used.
+     * Measures are restored most recently used first, and only while they fit within the cache's size, so that
+     * restoring never evicts one restored measure in favor of another.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void restore() {
+        List<String> ids = snapshotStore.getIds();
+        if (ids.isEmpty()) {
+            return;
+        }
+        Thread thread = new Thread(() -> restore(ids), "evaluator-restorer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void restore(List<String> ids) {
+        long restoredAt = System.nanoTime();
+        for (int index = 0; index < ids.size(); index++) {
+            String id = ids.get(index);
+            if (instancesById.containsKey(id)) {
+                continue;
+            }
+            Entry entry;
+            try {
+                entry = compile(id, this.linkConfig.isCqlDebug());
+                if (entry == null) {
+                    continue;
+                }
+                entry.estimate();
+            } catch (Exception e) {
+                logger.warn("Failed to restore measure definition {} from snapshot", id, e);
+                continue;
+            }
+            if (getEstimatedBytes() + entry.estimatedBytes > maxBytes) {
+                logger.info("Restored {} of {} snapshotted measure definitions; the rest do not fit in the evaluator cache",
+                        index, ids.size());
+                return;
+            }
+            // Keep the snapshots' order of use, so that the least recently used are evicted first
+            entry.lastUsed = restoredAt - index;
+            if (instancesById.putIfAbsent(id, entry) == null) {
+                uncompiledLibraryIndexesById.remove(id);
+                reindex();
+                scheduleRefresh(id);
+            }
+        }
+    }
+
+    /**
+     * Translates a measure definition's libraries to ELM and stores it on the definition, so that compiling the measure
+     * need not translate CQL. The measure is not otherwise compiled. If translation fails, the definition is left without ELM and the failure is deferred until
+     * the measure is compiled.
+     */
+    public void translate(MeasureDefinition measureDefinition) {
+        measureDefinition.setElm(null);
+        measureDefinition.setElmTranslatorVersion(null);
+        String translatorVersion = MeasureEvaluator.getTranslatorVersion();
+        if (translatorVersion == null) {
+            logger.warn("CQL translator version is unknown; not storing ELM for measure definition {}",
+                    measureDefinition.getId());
+            return;
+        }
+        try {
+            MeasureEvaluator instance =
+                    MeasureEvaluator.translate(fhirContext, measureDefinition.getBundle(), compiledLibraryCache);
+            measureDefinition.setElm(toElm(instance.getElm()));
+            measureDefinition.setElmTranslatorVersion(translatorVersion);
+        } catch (Exception e) {
+            logger.warn("Failed to translate measure definition {}", measureDefinition.getId(), e);
+        }
+    }
+
+    static List<MeasureDefinition.Elm> toElm(Map<VersionedIdentifier, String> elmByIdentifier) {
+        return elmByIdentifier.entrySet().stream()
+                .map(entry -> {
+                    MeasureDefinition.Elm elm = new MeasureDefinition.Elm();
+                    elm.setLibraryName(entry.getKey().getId());
+                    elm.setLibraryVersion(entry.getKey().getVersion());
+                    elm.setContent(entry.getValue());
+                    return elm;
+                })
+                .toList();
+    }
+
+    private static Map<VersionedIdentifier, String> fromElm(List<MeasureDefinition.Elm> elm) {
+        Map<VersionedIdentifier, String> elmByIdentifier = new HashMap<>();
+        for (MeasureDefinition.Elm _elm : elm) {
+            VersionedIdentifier identifier = new VersionedIdentifier()
+                    .withId(_elm.getLibraryName())
+                    .withVersion(_elm.getLibraryVersion());
+            elmByIdentifier.put(identifier, _elm.getContent());
+        }
+        return elmByIdentifier;
+    }
+
+    /**
+     * Gets a measure definition's stored ELM by library identifier, or null if it has none or if it was produced by a
+     * different translator version.
+     */
+    private static Map<VersionedIdentifier, String> getElm(MeasureDefinition measureDefinition) {
+        if (measureDefinition.getElm() == null || measureDefinition.getElm().isEmpty()) {
+            return null;
+        }
+        if (!Objects.equals(measureDefinition.getElmTranslatorVersion(), MeasureEvaluator.getTranslatorVersion())) {
+            logger.info("Ignoring ELM for measure definition {} translated by version {}",
+                    measureDefinition.getId(), measureDefinition.getElmTranslatorVersion());
+            return null;
+        }
+        return fromElm(measureDefinition.getElm());
     }
 
     public MeasureEvaluator get(String id) {
-        return instancesById.computeIfAbsent(id, _id -> {
-            MeasureDefinition measureDefinition = definitionRepository.findById(_id).orElse(null);
-            if (measureDefinition == null) {
+        Entry entry = instancesById.get(id);
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            Entry[] compiled = new Entry[1];
+            entry = instancesById.computeIfAbsent(id, _id -> compiled[0] = compile(_id, this.linkConfig.isCqlDebug()));
+            if (entry == null) {
                 return null;
             }
-            return MeasureEvaluator.compile(fhirContext, measureDefinition.getBundle(), this.linkConfig.isCqlDebug());
+            if (entry == compiled[0]) {
+                // Estimated outside computeIfAbsent, which blocks other updates to the map while it runs
+                entry.estimate();
+            }
+            uncompiledLibraryIndexesById.remove(id);
+            evict(id);
+            reindex();
+            // A newer version may have been announced while this one was compiling
+            scheduleRefresh(id);
+        }
+        entry.lastUsed = System.nanoTime();
+        if (entry.lastUsed - entry.lastTouched > TOUCH_INTERVAL_NANOS) {
+            entry.lastTouched = entry.lastUsed;
+            snapshotStore.touch(id);
+        }
+        return entry.evaluator;
+    }
+
+    /**
+     * Gets the version of the measure definition from which each cached evaluator was compiled.
+     */
+    public Map<String, Long> getVersions() {
+        Map<String, Long> versions = new HashMap<>();
+        instancesById.forEach((id, entry) -> versions.put(id, entry.version));
+        return versions;
+    }
+
+    /**
+     * Gets the estimated heap retained by each cached evaluator; see {@link MeasureEvaluator#estimateRetainedBytes()}.
+     */
+    public Map<String, Long> getEstimatedBytesById() {
+        Map<String, Long> estimatedBytesById = new HashMap<>();
+        instancesById.forEach((id, entry) -> estimatedBytesById.put(id, entry.estimatedBytes));
+        return estimatedBytesById;
+    }
+
+    public long getEstimatedBytes() {
+        return instancesById.values().stream().mapToLong(entry -> entry.estimatedBytes).sum();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCompilations() {
+        return compilations.get();
+    }
+
+    /**
+     * Evicts least recently used evaluators until the estimated size of the cache is within its bound.
+     * The given evaluator, having just been compiled, is retained even if it alone exceeds the bound.
+     */
+    private synchronized void evict(String retainedId) {
+        long bytes = getEstimatedBytes();
+        if (bytes <= maxBytes) {
+            return;
+        }
+        // Snapshot last use, since readers update it concurrently
+        List<Usage> usages = new ArrayList<>();
+        instancesById.forEach((id, entry) -> {
+            if (!id.equals(retainedId)) {
+                usages.add(new Usage(id, entry, entry.lastUsed));
+            }
         });
+        usages.sort(Comparator.comparingLong(Usage::lastUsed));
+        for (Iterator<Usage> iterator = usages.iterator(); bytes > maxBytes && iterator.hasNext(); ) {
+            Usage eldest = iterator.next();
+            if (instancesById.remove(eldest.id(), eldest.entry())) {
+                bytes -= eldest.entry().estimatedBytes;
+                logger.info("Evicted measure definition {} (~{} bytes) from the evaluator cache",
+                        eldest.id(), eldest.entry().estimatedBytes);
+            }
+        }
+        if (bytes > maxBytes) {
+            logger.warn("Evaluator cache holds ~{} bytes, exceeding its size of {} bytes", bytes, maxBytes);
+        }
+    }
+
+    /**
+     * Brings a cached evaluator up to date with a version of its measure definition.
+     * If an older version is cached, the current version is compiled in the background and swapped in when ready; the
+     * older version serves evaluations in the meantime. Measures that are not cached are compiled on first use, as
+     * usual.
+     * <p>
+     * The latest announced version is recorded and checked again after every compile, so that an announcement that
+     * arrives while an older version is compiling (e.g., on first use) is not lost.
+     */
+    public void refresh(String id, long version) {
+        announcedVersionsById.merge(id, version, Math::max);
+        debugInstancesById.remove(id);
+        uncompiledLibraryIndexesById.remove(id);
+        scheduleRefresh(id);
+    }
+
+    private void scheduleRefresh(String id) {
+        Long announced = announcedVersionsById.get(id);
+        if (announced == null || !isStale(id, announced)) {
+            return;
+        }
+        refresher.execute(() -> {
+            // Skip versions that have already been superseded
+            long version = announcedVersionsById.getOrDefault(id, announced);
+            if (!isStale(id, version)) {
+                return;
+            }
+            Entry compiled;
+            try {
+                compiled = compile(id, this.linkConfig.isCqlDebug());
+                if (compiled != null) {
+                    compiled.estimate();
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to compile version {} of measure definition {}; the cached version remains in use",
+                        version, id, e);
+                return;
+            }
+            if (compiled == null) {
+                instancesById.remove(id);
+            } else {
+                compiled.lastUsed = instancesById.getOrDefault(id, compiled).lastUsed;
+                instancesById.merge(id, compiled, (existing, _compiled) ->
+                        _compiled.version > existing.version ? _compiled : existing);
+                logger.info("Switched measure definition {} to version {}", id, compiled.version);
+                evict(id);
+            }
+            reindex();
+            if (compiled == null) {
+                return;
+            }
+            if (compiled.version < version) {
+                // Retrying would compile the same version again; the next announcement will retry instead
+                logger.warn("Compiled version {} of measure definition {}, but version {} was announced",
+                        compiled.version, id, version);
+            } else {
+                // A newer version may have been announced while this one was compiling
+                scheduleRefresh(id);
+            }
+        });
+    }
+
+    private boolean isStale(String id, long version) {
+        Entry entry = instancesById.get(id);
+        return entry != null && entry.version < version;
+    }
+
+    /**
+     * Gets the library index for a measure without compiling it if it is not already cached.
+     * The index of a measure that is not compiled is cached until the measure definition changes or is compiled.
+     */
+    public LibraryIndex getLibraryIndex(String id) {
+        Entry entry = instancesById.get(id);
+        if (entry != null) {
+            return entry.evaluator.getLibraryIndex();
+        }
+        return uncompiledLibraryIndexesById.computeIfAbsent(id, _id -> definitionRepository.findById(_id)
+                .map(measureDefinition -> LibraryIndex.of(measureDefinition.getBundle()))
+                .orElse(null));
+    }
+
+    /**
+     * Gets an evaluator with CQL debug logging enabled.
+     * Debug evaluators are compiled on demand and evicted once they have gone unused for the configured idle timeout.
+     */
+    public MeasureEvaluator getDebug(String id) {
+        if (this.linkConfig.isCqlDebug()) {
+            return get(id);
+        }
+        MeasureEvaluator instance;
+        synchronized (debugInstancesById) {
+            instance = debugInstancesById.get(id);
+            if (instance != null) {
+                // Re-put on every access so that expiration is measured from last use
+                debugInstancesById.put(id, instance);
+                return instance;
+            }
+        }
+        // Compile outside the lock, so that library resolution and other debug lookups are not blocked meanwhile
+        Entry compiled = compile(id, true);
+        if (compiled == null) {
+            return null;
+        }
+        // Another request may have compiled the same measure concurrently
+        instance = debugInstancesById.putIfAbsent(id, compiled.evaluator);
+        return instance == null ? compiled.evaluator : instance;
     }
 
     public void remove(String id) {
+        announcedVersionsById.remove(id);
+        snapshotStore.delete(id);
         instancesById.remove(id);
+        debugInstancesById.remove(id);
+        uncompiledLibraryIndexesById.remove(id);
+        reindex();
+    }
+
+    private synchronized void reindex() {
+        libraryIndex = LibraryIndex.merge(instancesById.values().stream()
+                .map(entry -> entry.evaluator.getLibraryIndex())
+                .toList());
     }
 
     @Override
     public Library resolve(String libraryId) {
-        for (MeasureEvaluator instance : instancesById.values()) {
-            Library library = CqlUtils.getLibrary(instance.getBundle(), libraryId);
-            if (library != null) {
-                return library;
+        Library library = libraryIndex.resolve(libraryId);
+        if (library != null) {
+            return library;
+        }
+        // Debug evaluators expire passively, so they are consulted individually rather than merged into the index
+        synchronized (debugInstancesById) {
+            for (MeasureEvaluator instance : debugInstancesById.values()) {
+                library = instance.getLibraryIndex().resolve(libraryId);
+                if (library != null) {
+                    return library;
+                }
             }
         }
         return null;
     }
+
+    private static class Entry {
+        private final long version;
+        private final MeasureEvaluator evaluator;
+        // Set once compiled, apart from compiling; see estimate
+        private volatile long estimatedBytes;
+        private volatile long lastUsed = System.nanoTime();
+        // When the snapshot was last marked as used; see EvaluatorSnapshotStore#touch
+        private volatile long lastTouched = lastUsed - TOUCH_INTERVAL_NANOS - 1;
+
+        private Entry(long version, MeasureEvaluator evaluator) {
+            this.version = version;
+            this.evaluator = evaluator;
+        }
+
+        private void estimate() {
+            estimatedBytes = evaluator.estimateRetainedBytes();
+        }
+    }
+
+    private record Usage(String id, Entry entry, long lastUsed) {
+    }
 }
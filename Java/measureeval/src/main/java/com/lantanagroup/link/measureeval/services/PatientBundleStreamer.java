@@ -0,0 +1,179 @@
+package com.lantanagroup.link.measureeval.services;
+
+import com.lantanagroup.link.measureeval.entities.Resource;
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+import com.lantanagroup.link.shared.Timer;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Writes a patient's stored resources as FHIR JSON straight from their documents, without parsing them into HAPI
+ * models: BSON payloads are converted to JSON, compressed payloads are decompressed, and shared payloads are copied as
+ * stored. Resources are written as they are read from the database, so memory use does not grow with their number.
+ */
+@Service
+public class PatientBundleStreamer {
+    private static final Logger logger = LoggerFactory.getLogger(PatientBundleStreamer.class);
+
+    private static final byte[] BUNDLE_START =
+            "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENTRY_START = "{\"resource\":".getBytes(StandardCharsets.UTF_8);
+
+    private final MongoOperations mongoOperations;
+    private final ResourceCompressor resourceCompressor;
+
+    public PatientBundleStreamer(MongoOperations mongoOperations, ResourceCompressor resourceCompressor) {
+        this.mongoOperations = mongoOperations;
+        this.resourceCompressor = resourceCompressor;
+    }
+
+    /**
+     * Matches a correlation's resources, unless they have expired; see
+     * {@link com.lantanagroup.link.measureeval.repositories.ResourceRepository#findUnexpiredByFacilityIdAndCorrelationId}.
+     */
+    private static Criteria criteria(String facilityId, String correlationId) {
+        return where("facilityId").is(facilityId).and("correlationId").is(correlationId)
+                .orOperator(where("expireAt").is(null), where("expireAt").gt(new Date()));
+    }
+
+    /**
+     * Identifies the current content of a patient's resources, or returns null if the patient has none.
+     */
+    public Version getVersion(String facilityId, String correlationId) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(criteria(facilityId, correlationId)),
+                Aggregation.group().count().as("count").max("modifiedDate").as("modifiedDate"));
+        Document result = mongoOperations.aggregate(aggregation, Resource.class, Document.class).getUniqueMappedResult();
+        if (result == null) {
+            return null;
+        }
+        return new Version(((Number) result.get("count")).longValue(), result.getDate("modifiedDate"));
+    }
+
+    /**
+     * Writes a patient's resources in the given format, returning the number of resources written.
+     * Shared payloads referenced by the patient's resources are retrieved up front, in a single query; if any cannot
+     * be found, this throws before anything is written.
+     */
+    public long write(String facilityId, String correlationId, Format format, OutputStream out) throws IOException {
+        try (Timer timer = Timer.start()) {
+            String collectionName = mongoOperations.getCollectionName(Resource.class);
+            Query query = query(criteria(facilityId, correlationId));
+            List<String> sharedResourceIds =
+                    mongoOperations.findDistinct(query, "sharedResourceId", collectionName, String.class);
+            Map<String, byte[]> sharedPayloads = getSharedPayloads(sharedResourceIds);
+            for (String sharedResourceId : sharedResourceIds) {
+                if (!sharedPayloads.containsKey(sharedResourceId)) {
+                    throw new IllegalStateException(String.format("Shared resource not found: %s", sharedResourceId));
+                }
+            }
+            long count = 0;
+            if (format == Format.BUNDLE) {
+                out.write(BUNDLE_START);
+            }
+            try (Stream<Document> documents = mongoOperations.stream(query, Document.class, collectionName)) {
+                for (Iterator<Document> iterator = documents.iterator(); iterator.hasNext(); ) {
+                    byte[] json = getPayload(iterator.next(), sharedPayloads);
+                    if (json == null) {
+                        continue;
+                    }
+                    if (format == Format.BUNDLE) {
+                        if (count > 0) {
+                            out.write(',');
+                        }
+                        out.write(ENTRY_START);
+                        out.write(json);
+                        out.write('}');
+                    } else {
+                        out.write(json);
+                        out.write('\n');
+                    }
+                    count++;
+                }
+            }
+            if (format == Format.BUNDLE) {
+                out.write(("],\"total\":" + count + "}").getBytes(StandardCharsets.UTF_8));
+            }
+            logger.debug("Wrote {} resources in {} seconds", count, timer.getSeconds());
+            return count;
+        }
+    }
+
+    private Map<String, byte[]> getSharedPayloads(List<String> ids) {
+        Map<String, byte[]> payloads = new HashMap<>();
+        if (ids.isEmpty()) {
+            return payloads;
+        }
+        List<Document> documents = mongoOperations.find(
+                query(where("_id").in(ids)), Document.class, mongoOperations.getCollectionName(SharedResource.class));
+        for (Document document : documents) {
+            Document resource = document.get("resource", Document.class);
+            if (resource != null) {
+                payloads.put(document.getString("_id"), toJson(resource));
+            }
+        }
+        return payloads;
+    }
+
+    private byte[] getPayload(Document document, Map<String, byte[]> sharedPayloads) {
+        String sharedResourceId = document.getString("sharedResourceId");
+        if (sharedResourceId != null) {
+            byte[] payload = sharedPayloads.get(sharedResourceId);
+            if (payload == null) {
+                throw new IllegalStateException(String.format("Shared resource not found for %s/%s: %s",
+                        document.get("resourceType"), document.get("resourceId"), sharedResourceId));
+            }
+            return payload;
+        }
+        if (document.get("compressedResource") instanceof Binary compressed) {
+            return resourceCompressor.decompress(compressed.getData(), document.getString("compressionDictionaryId"));
+        }
+        Document resource = document.get("resource", Document.class);
+        return resource == null ? null : toJson(resource);
+    }
+
+    private static byte[] toJson(Document resource) {
+        // Payloads are written as parsed FHIR JSON, but may carry a type hint added by the mapping layer
+        resource.remove("_class");
+        return resource.toJson().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public enum Format {
+        /**
+         * A collection Bundle, with one entry per resource.
+         */
+        BUNDLE,
+
+        /**
+         * Newline-delimited JSON, with one resource per line.
+         */
+        NDJSON
+    }
+
+    /**
+     * The number of a patient's resources and when the latest of them was modified.
+     * Resources are rewritten whenever they are acquired, and shared payloads are immutable, so together these change
+     * whenever the content of the patient's resources does.
+     */
+    public record Version(long count, Date lastModified) {
+        public String getETag() {
+            return String.format("W/\"%d-%d\"", count, lastModified == null ? 0L : lastModified.getTime());
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.util.Date;
 import java.util.List;
 
 @Service
@@ -16,9 +17,11 @@ public class PatientStatusBundler {
     private static final Logger logger = LoggerFactory.getLogger(PatientStatusBundler.class);
 
     private final ResourceRepository resourceRepository;
+    private final SharedResourceStore sharedResourceStore;
 
-    public PatientStatusBundler(ResourceRepository resourceRepository) {
+    public PatientStatusBundler(ResourceRepository resourceRepository, SharedResourceStore sharedResourceStore) {
         this.resourceRepository = resourceRepository;
+        this.sharedResourceStore = sharedResourceStore;
     }
 
     public Bundle createBundle (String facilityId, String correlationId) {
@@ -27,8 +30,7 @@ public class PatientStatusBundler {
         }
         Bundle bundle = new Bundle();
         bundle.setType(Bundle.BundleType.COLLECTION);
-        retrieveResources(facilityId, correlationId).stream()
-                .map(Resource::getResource)
+        sharedResourceStore.resolve(retrieveResources(facilityId, correlationId)).stream()
                 .map(org.hl7.fhir.r4.model.Resource.class::cast)
                 .forEachOrdered(resource -> bundle.addEntry().setResource(resource));
         bundle.setTotal(bundle.getEntry().size());
@@ -41,7 +43,7 @@ public class PatientStatusBundler {
         }
 
         try (Timer timer = Timer.start()) {
-            var resources  = resourceRepository.findByFacilityIdAndCorrelationId(facilityId, correlationId);
+            var resources  = resourceRepository.findUnexpiredByFacilityIdAndCorrelationId(facilityId, correlationId, new Date());
 
             logger.debug("Retrieved {} resources from the database in {} seconds",
                     resources.size(), timer.getSeconds());
@@ -4,6 +4,7 @@ import com.lantanagroup.link.measureeval.records.DataAcquisitionRequested;
 import com.lantanagroup.link.measureeval.records.ResourceAcquired;
 import com.lantanagroup.link.measureeval.repositories.PatientReportingEvaluationStatusRepository;
 import com.lantanagroup.link.measureeval.repositories.ResourceRepository;
+import com.lantanagroup.link.shared.kafka.FairScheduler;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Service;
@@ -20,7 +21,9 @@ public class ResourceAcquiredErrorConsumer extends AbstractResourceConsumer<Reso
             KafkaTemplate<String, DataAcquisitionRequested> dataAcquisitionRequestedTemplate,
             EvaluateMeasureService evaluateMeasureService,
             PatientStatusBundler patientStatusBundler,
-            ResourceEvaluatedProducer resourceEvaluatedProducer){
+            ResourceEvaluatedProducer resourceEvaluatedProducer,
+            SharedResourceStore sharedResourceStore,
+            FairScheduler consumerScheduler){
         super(
                 resourceRepository,
                 patientStatusRepository,
@@ -30,6 +33,8 @@ public class ResourceAcquiredErrorConsumer extends AbstractResourceConsumer<Reso
                 evaluateMeasureService,
                 patientStatusBundler,
                 resourceEvaluatedProducer,
+                sharedResourceStore,
+                consumerScheduler,
                 null);
     }
 }
@@ -0,0 +1,186 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.CompressionDictionary;
+import com.lantanagroup.link.measureeval.entities.Resource;
+import com.lantanagroup.link.measureeval.repositories.CompressionDictionaryRepository;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores resource payloads as zstd-compressed FHIR JSON when {@code link.compress-resources} is enabled.
+ * Payloads are compressed with a shared dictionary trained on the first resources written after compression is
+ * enabled (until then, they are compressed without one). Training runs in the background, so that writers are not
+ * held up by it; payloads written while it runs are compressed without a dictionary.
+ * Each document records the dictionary it was compressed with, so dictionaries can be retrained and compression can
+ * be toggled without rewriting existing documents; {@link #decompress} handles every combination.
+ */
+@Service
+public class ResourceCompressor {
+    private static final Logger logger = LoggerFactory.getLogger(ResourceCompressor.class);
+
+    private final FhirContext fhirContext;
+    private final CompressionDictionaryRepository dictionaryRepository;
+    private final LinkConfig linkConfig;
+    private final Map<String, ZstdDictDecompress> decompressorsById = new ConcurrentHashMap<>();
+    private volatile Dictionary dictionary;
+    private volatile boolean dictionaryLoaded;
+    private final Executor trainingExecutor;
+    private ZstdDictTrainer trainer;
+    private int sampleCount;
+    private boolean training;
+
+    @Autowired
+    public ResourceCompressor(
+            FhirContext fhirContext,
+            CompressionDictionaryRepository dictionaryRepository,
+            LinkConfig linkConfig) {
+        this(fhirContext, dictionaryRepository, linkConfig, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "compression-dictionary-trainer");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public ResourceCompressor(
+            FhirContext fhirContext,
+            CompressionDictionaryRepository dictionaryRepository,
+            LinkConfig linkConfig,
+            Executor trainingExecutor) {
+        this.fhirContext = fhirContext;
+        this.dictionaryRepository = dictionaryRepository;
+        this.linkConfig = linkConfig;
+        this.trainingExecutor = trainingExecutor;
+    }
+
+    /**
+     * Sets the entity's payload, compressing it if compression is enabled.
+     */
+    public void compress(Resource entity, IBaseResource resource) {
+        if (!linkConfig.isCompressResources() || resource == null) {
+            entity.setResource(resource);
+            entity.setCompressedResource(null);
+            entity.setCompressionDictionaryId(null);
+            return;
+        }
+        byte[] json = fhirContext.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        Dictionary dictionary = getDictionary();
+        entity.setResource(null);
+        if (dictionary == null) {
+            entity.setCompressedResource(Zstd.compress(json, linkConfig.getResourceCompressionLevel()));
+            entity.setCompressionDictionaryId(null);
+            addSample(json);
+        } else {
+            entity.setCompressedResource(Zstd.compress(json, dictionary.compressor()));
+            entity.setCompressionDictionaryId(dictionary.id());
+        }
+    }
+
+    /**
+     * Gets the entity's payload, decompressing it if it was stored compressed.
+     */
+    public IBaseResource decompress(Resource entity) {
+        byte[] compressed = entity.getCompressedResource();
+        if (compressed == null) {
+            return entity.getResource();
+        }
+        byte[] json = decompress(compressed, entity.getCompressionDictionaryId());
+        return fhirContext.newJsonParser().parseResource(new String(json, StandardCharsets.UTF_8));
+    }
+
+    byte[] decompress(byte[] compressed, String dictionaryId) {
+        int size = (int) Zstd.decompressedSize(compressed);
+        if (dictionaryId == null) {
+            return Zstd.decompress(compressed, size);
+        }
+        return Zstd.decompress(compressed, getDecompressor(dictionaryId), size);
+    }
+
+    private ZstdDictDecompress getDecompressor(String dictionaryId) {
+        return decompressorsById.computeIfAbsent(dictionaryId, id -> {
+            CompressionDictionary dictionary = dictionaryRepository.findById(id).orElseThrow(
+                    () -> new IllegalStateException(String.format("Compression dictionary not found: %s", id)));
+            return new ZstdDictDecompress(dictionary.getDictionary());
+        });
+    }
+
+    private Dictionary getDictionary() {
+        if (!dictionaryLoaded) {
+            synchronized (this) {
+                if (!dictionaryLoaded) {
+                    dictionaryRepository.findFirstByOrderByCreatedDateDesc().ifPresent(this::setDictionary);
+                    dictionaryLoaded = true;
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    private void setDictionary(CompressionDictionary entity) {
+        logger.info("Using compression dictionary {} ({} bytes)", entity.getId(), entity.getDictionary().length);
+        dictionary = new Dictionary(
+                entity.getId(),
+                new ZstdDictCompress(entity.getDictionary(), linkConfig.getResourceCompressionLevel()));
+    }
+
+    private void addSample(byte[] sample) {
+        ZstdDictTrainer fullTrainer;
+        int fullSampleCount;
+        synchronized (this) {
+            if (dictionary != null || training) {
+                return;
+            }
+            if (trainer == null) {
+                trainer = new ZstdDictTrainer(
+                        (int) linkConfig.getResourceCompressionTrainingSize().toBytes(),
+                        (int) linkConfig.getResourceCompressionDictionarySize().toBytes());
+            }
+            if (trainer.addSample(sample)) {
+                sampleCount++;
+                return;
+            }
+            // The sample buffer is full; train on what has been collected
+            fullTrainer = trainer;
+            fullSampleCount = sampleCount;
+            trainer = null;
+            sampleCount = 0;
+            training = true;
+        }
+        trainingExecutor.execute(() -> train(fullTrainer, fullSampleCount));
+    }
+
+    private void train(ZstdDictTrainer trainer, int sampleCount) {
+        logger.info("Training compression dictionary on {} samples", sampleCount);
+        try {
+            CompressionDictionary entity = new CompressionDictionary();
+            entity.setId(UUID.randomUUID().toString());
+            entity.setDictionary(trainer.trainSamples());
+            entity.setSampleCount(sampleCount);
+            setDictionary(dictionaryRepository.insert(entity));
+        } catch (Exception e) {
+            logger.error("Failed to train compression dictionary; continuing without one", e);
+        } finally {
+            synchronized (this) {
+                training = false;
+            }
+        }
+    }
+
+    private record Dictionary(String id, ZstdDictCompress compressor) {
+    }
+}
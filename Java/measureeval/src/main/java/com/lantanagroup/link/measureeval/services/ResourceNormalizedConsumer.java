@@ -4,6 +4,7 @@ import com.lantanagroup.link.measureeval.records.DataAcquisitionRequested;
 import com.lantanagroup.link.measureeval.records.ResourceNormalized;
 import com.lantanagroup.link.measureeval.repositories.PatientReportingEvaluationStatusRepository;
 import com.lantanagroup.link.measureeval.repositories.ResourceRepository;
+import com.lantanagroup.link.shared.kafka.FairScheduler;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.listener.ConsumerRecordRecoverer;
@@ -22,6 +23,8 @@ public class ResourceNormalizedConsumer extends AbstractResourceConsumer<Resourc
           EvaluateMeasureService evaluateMeasureService,
           PatientStatusBundler patientStatusBundler,
           ResourceEvaluatedProducer resourceEvaluatedProducer,
+          SharedResourceStore sharedResourceStore,
+          FairScheduler consumerScheduler,
           ConsumerRecordRecoverer recoverer){
     super(
             resourceRepository,
@@ -32,6 +35,8 @@ public class ResourceNormalizedConsumer extends AbstractResourceConsumer<Resourc
             evaluateMeasureService,
             patientStatusBundler,
             resourceEvaluatedProducer,
+            sharedResourceStore,
+            consumerScheduler,
             recoverer);
   }
 }
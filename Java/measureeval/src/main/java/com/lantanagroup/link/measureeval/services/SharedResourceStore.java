@@ -0,0 +1,152 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
+import com.lantanagroup.link.measureeval.entities.Resource;
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+import com.lantanagroup.link.measureeval.repositories.SharedResourceRepository;
+import org.apache.commons.collections4.map.LRUMap;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Stores the payloads of resource types that are typically identical across patients (configured by
+ * {@code link.shared-resource-types}) once per facility, keyed by a hash of their content.
+ * Per-patient {@link Resource} documents of those types reference the shared payload instead of carrying a copy;
+ * all other payloads are stored on the document itself via {@link ResourceCompressor}.
+ * Shared payloads are immutable, so they are cached in-process when resolved without any need for invalidation.
+ */
+@Service
+public class SharedResourceStore {
+    private final FhirContext fhirContext;
+    private final SharedResourceRepository sharedResourceRepository;
+    private final ResourceCompressor resourceCompressor;
+    private final LinkConfig linkConfig;
+    private final Map<String, IBaseResource> cache;
+
+    public SharedResourceStore(
+            FhirContext fhirContext,
+            SharedResourceRepository sharedResourceRepository,
+            ResourceCompressor resourceCompressor,
+            LinkConfig linkConfig) {
+        this.fhirContext = fhirContext;
+        this.sharedResourceRepository = sharedResourceRepository;
+        this.resourceCompressor = resourceCompressor;
+        this.linkConfig = linkConfig;
+        this.cache = Collections.synchronizedMap(new LRUMap<>(linkConfig.getSharedResourceCacheSize()));
+    }
+
+    /**
+     * Gets when a correlation's resources expire: once the retention period has passed since the later of when the
+     * correlation began and the end of its latest report. This is the same for every resource of the correlation, so
+     * they expire together. Returns null if retention is disabled.
+     */
+    public Date getExpireAt(PatientReportingEvaluationStatus patientStatus) {
+        Duration retention = linkConfig.getResourceRetention();
+        if (retention == null || retention.isZero() || retention.isNegative()) {
+            return null;
+        }
+        Date start = Objects.requireNonNullElseGet(patientStatus.getCreatedDate(), Date::new);
+        for (PatientReportingEvaluationStatus.Report report : patientStatus.getReports()) {
+            if (report.getEndDate() != null && report.getEndDate().after(start)) {
+                start = report.getEndDate();
+            }
+        }
+        return Date.from(start.toInstant().plus(retention));
+    }
+
+    /**
+     * Determines whether a correlation's resources have exceeded the retention period, and so may have been removed.
+     * Always false if retention is disabled.
+     */
+    public boolean isExpired(PatientReportingEvaluationStatus patientStatus) {
+        Date expireAt = getExpireAt(patientStatus);
+        return expireAt != null && !expireAt.after(new Date());
+    }
+
+    /**
+     * Sets the entity's payload, either as a reference to a shared payload or on the entity itself.
+     */
+    public void store(Resource entity, IBaseResource resource) {
+        if (resource == null || !linkConfig.getSharedResourceTypes().contains(entity.getResourceType())) {
+            entity.setSharedResourceId(null);
+            resourceCompressor.compress(entity, resource);
+            return;
+        }
+        String json = fhirContext.newJsonParser().encodeResourceToString(resource);
+        SharedResource sharedResource = new SharedResource();
+        sharedResource.setId(hash(entity.getFacilityId(), json));
+        sharedResource.setFacilityId(entity.getFacilityId());
+        sharedResource.setResourceType(entity.getResourceType());
+        sharedResource.setResourceId(entity.getResourceId());
+        sharedResource.setResource(resource);
+        sharedResource.setExpireAt(entity.getExpireAt());
+        sharedResourceRepository.reference(sharedResource);
+        entity.setSharedResourceId(sharedResource.getId());
+        resourceCompressor.compress(entity, null);
+    }
+
+    /**
+     * Gets the entities' payloads, in order.
+     * Shared payloads not already cached are retrieved in a single query.
+     * Each shared payload is returned as a copy, so callers may modify it freely.
+     * Throws if a shared payload cannot be found, rather than returning the patient's data without it.
+     */
+    public List<IBaseResource> resolve(List<Resource> entities) {
+        // Cached payloads are captured up front, since they may be evicted before the entities are resolved below
+        Map<String, IBaseResource> retrieved = new HashMap<>();
+        Set<String> uncachedIds = new HashSet<>();
+        for (Resource entity : entities) {
+            String sharedResourceId = entity.getSharedResourceId();
+            if (sharedResourceId == null || retrieved.containsKey(sharedResourceId)) {
+                continue;
+            }
+            IBaseResource resource = cache.get(sharedResourceId);
+            if (resource != null) {
+                retrieved.put(sharedResourceId, resource);
+            } else {
+                uncachedIds.add(sharedResourceId);
+            }
+        }
+        if (!uncachedIds.isEmpty()) {
+            for (SharedResource sharedResource : sharedResourceRepository.findAllById(uncachedIds)) {
+                retrieved.put(sharedResource.getId(), sharedResource.getResource());
+                cache.put(sharedResource.getId(), sharedResource.getResource());
+            }
+        }
+        List<IBaseResource> resources = new ArrayList<>(entities.size());
+        for (Resource entity : entities) {
+            String sharedResourceId = entity.getSharedResourceId();
+            if (sharedResourceId == null) {
+                resources.add(resourceCompressor.decompress(entity));
+                continue;
+            }
+            IBaseResource resource = retrieved.get(sharedResourceId);
+            if (resource == null) {
+                throw new IllegalStateException(String.format("Shared resource not found for %s/%s: %s",
+                        entity.getResourceType(), entity.getResourceId(), sharedResourceId));
+            }
+            resources.add(((org.hl7.fhir.r4.model.Resource) resource).copy());
+        }
+        return resources;
+    }
+
+    private static String hash(String facilityId, String json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Objects.requireNonNullElse(facilityId, "").getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(json.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
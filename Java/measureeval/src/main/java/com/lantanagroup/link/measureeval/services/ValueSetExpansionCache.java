@@ -0,0 +1,227 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Holds ValueSet expansions computed by the CQL engine so that they are shared across evaluations and measures.
+ * <p>
+ * Expansions are keyed by canonical URL, version, and a SHA-256 hash of the ValueSet's FHIR JSON, so measures that
+ * carry different content under the same canonical URL never share an expansion. Cached expansions are immutable.
+ * The estimated size of the cache is bounded; least recently used expansions are evicted beyond that bound and are
+ * recomputed on next use. Lookups do not lock, since the engine consults the cache on every membership test.
+ */
+@Component
+public class ValueSetExpansionCache {
+    private static final Logger logger = LoggerFactory.getLogger(ValueSetExpansionCache.class);
+
+    // Rough per-object sizes on a 64-bit JVM with compressed references
+    private static final long LIST_OVERHEAD = 16L;
+    private static final long REFERENCE_SIZE = 4L;
+    private static final long CODE_OVERHEAD = 32L;
+    private static final long STRING_OVERHEAD = 40L;
+
+    private final long maxBytes;
+    private final Map<String, Entry> entriesByKey = new ConcurrentHashMap<>();
+    private volatile long bytes;
+
+    @Autowired
+    public ValueSetExpansionCache(LinkConfig linkConfig, MeasureEvalMetrics measureEvalMetrics) {
+        this(linkConfig.getValueSetCacheSize().toBytes());
+        measureEvalMetrics.ObserveValueSetCacheSize(this::getEstimatedBytes);
+    }
+
+    public ValueSetExpansionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets a view of this cache for the ValueSets in a measure bundle, suitable for
+     * {@link org.opencds.cqf.fhir.cql.EvaluationSettings#setValueSetCache(Map)}.
+     * The view is keyed as the CQL engine keys expansions: by canonical URL, optionally followed by a pipe and version.
+     * Expansions of ValueSets that are not in the bundle are cached in the view only.
+     */
+    public Map<String, List<Code>> viewOf(FhirContext fhirContext, Bundle bundle) {
+        Map<String, String> keysByUrl = new HashMap<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (!(entry.getResource() instanceof ValueSet valueSet) || !valueSet.hasUrl()) {
+                continue;
+            }
+            String key = String.join("|", valueSet.getUrl(), Objects.toString(valueSet.getVersion(), ""),
+                    hash(fhirContext.newJsonParser().encodeResourceToString(valueSet)));
+            keysByUrl.put(valueSet.getUrl(), key);
+            if (valueSet.hasVersion()) {
+                keysByUrl.put(valueSet.getUrl() + "|" + valueSet.getVersion(), key);
+            }
+        }
+        return new View(keysByUrl);
+    }
+
+    public int getSize() {
+        return entriesByKey.size();
+    }
+
+    public long getEstimatedBytes() {
+        return bytes;
+    }
+
+    private List<Code> get(String key) {
+        Entry entry = entriesByKey.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsed = System.nanoTime();
+        return entry.codes;
+    }
+
+    private synchronized List<Code> putIfAbsent(String key, List<Code> codes) {
+        Entry existing = entriesByKey.get(key);
+        if (existing != null) {
+            return existing.codes;
+        }
+        long estimatedBytes = estimateBytes(codes);
+        if (estimatedBytes > maxBytes) {
+            logger.warn("Not caching expansion of {} ({} codes, ~{} bytes); it exceeds the cache size of {} bytes",
+                    key, codes.size(), estimatedBytes, maxBytes);
+            return codes;
+        }
+        long newBytes = bytes + estimatedBytes;
+        if (newBytes > maxBytes) {
+            // Snapshot last use, since readers update it concurrently
+            List<Usage> usages = new ArrayList<>();
+            entriesByKey.forEach((_key, entry) -> usages.add(new Usage(_key, entry, entry.lastUsed)));
+            usages.sort(Comparator.comparingLong(Usage::lastUsed));
+            for (Iterator<Usage> iterator = usages.iterator(); newBytes > maxBytes && iterator.hasNext(); ) {
+                Usage eldest = iterator.next();
+                entriesByKey.remove(eldest.key());
+                newBytes -= eldest.entry().estimatedBytes;
+                logger.info("Evicted expansion of {} ({} codes) from the ValueSet expansion cache",
+                        eldest.key(), eldest.entry().codes.size());
+            }
+        }
+        entriesByKey.put(key, new Entry(codes, estimatedBytes));
+        bytes = newBytes;
+        return codes;
+    }
+
+    private List<Code> computeIfAbsent(String key, Function<String, List<Code>> expand) {
+        List<Code> codes = get(key);
+        if (codes != null) {
+            return codes;
+        }
+        // Expand outside the lock; concurrent expansions of the same ValueSet are rare and produce the same result
+        codes = expand.apply(key);
+        return codes == null ? null : putIfAbsent(key, List.copyOf(codes));
+    }
+
+    static long estimateBytes(List<Code> codes) {
+        long estimatedBytes = LIST_OVERHEAD + REFERENCE_SIZE * codes.size();
+        for (Code code : codes) {
+            estimatedBytes += CODE_OVERHEAD
+                    + estimateBytes(code.getCode())
+                    + estimateBytes(code.getSystem())
+                    + estimateBytes(code.getVersion())
+                    + estimateBytes(code.getDisplay());
+        }
+        return estimatedBytes;
+    }
+
+    private static long estimateBytes(String value) {
+        return value == null ? 0L : STRING_OVERHEAD + value.length();
+    }
+
+    private static String hash(String json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(json.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final List<Code> codes;
+        private final long estimatedBytes;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Entry(List<Code> codes, long estimatedBytes) {
+            this.codes = codes;
+            this.estimatedBytes = estimatedBytes;
+        }
+    }
+
+    private record Usage(String key, Entry entry, long lastUsed) {
+    }
+
+    private class View extends AbstractMap<String, List<Code>> {
+        private final Map<String, String> keysByUrl;
+        private final Map<String, List<Code>> local = new ConcurrentHashMap<>();
+
+        private View(Map<String, String> keysByUrl) {
+            this.keysByUrl = keysByUrl;
+        }
+
+        @Override
+        public List<Code> get(Object key) {
+            String sharedKey = keysByUrl.get(key);
+            return sharedKey == null ? local.get(key) : ValueSetExpansionCache.this.get(sharedKey);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public List<Code> put(String key, List<Code> value) {
+            String sharedKey = keysByUrl.get(key);
+            if (sharedKey == null) {
+                return local.put(key, List.copyOf(value));
+            }
+            List<Code> previous = ValueSetExpansionCache.this.get(sharedKey);
+            ValueSetExpansionCache.this.putIfAbsent(sharedKey, List.copyOf(value));
+            return previous;
+        }
+
+        @Override
+        public List<Code> computeIfAbsent(String key, Function<? super String, ? extends List<Code>> expand) {
+            String sharedKey = keysByUrl.get(key);
+            if (sharedKey == null) {
+                return local.computeIfAbsent(key, _key -> {
+                    List<Code> codes = expand.apply(_key);
+                    return codes == null ? null : List.copyOf(codes);
+                });
+            }
+            return ValueSetExpansionCache.this.computeIfAbsent(sharedKey, _sharedKey -> expand.apply(key));
+        }
+
+        /**
+         * Gets the expansions cached in this view, including only those shared expansions that are currently cached.
+         */
+        @Override
+        public Set<Map.Entry<String, List<Code>>> entrySet() {
+            Map<String, List<Code>> entries = new HashMap<>(local);
+            keysByUrl.forEach((url, sharedKey) -> {
+                List<Code> codes = ValueSetExpansionCache.this.get(sharedKey);
+                if (codes != null) {
+                    entries.put(url, codes);
+                }
+            });
+            return Collections.unmodifiableSet(entries.entrySet());
+        }
+    }
+}
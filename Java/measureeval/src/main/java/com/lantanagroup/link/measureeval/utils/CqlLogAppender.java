@@ -9,24 +9,56 @@ import javassist.NotFoundException;
 import org.hl7.fhir.r4.model.Library;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Processes CQL engine debug output off of the evaluating thread.
+ * Events are formatted on the calling thread and placed on a bounded queue; a single worker thread resolves the
+ * library, extracts the CQL range, and logs the result.
+ * When {@code neverBlock} is set, events are dropped (and counted) rather than blocking evaluation if the queue fills.
+ */
 public class CqlLogAppender extends AppenderBase<ILoggingEvent> {
     private static final Logger logger = LoggerFactory.getLogger(CqlLogAppender.class);
     private static final Pattern LOG_PATTERN = Pattern.compile("([\\w.]+)\\.(\\d+:\\d+-\\d+:\\d+)\\(\\d+\\):\\s*(\\{\\}|[^\\s]+)");
+    private static final Pattern MODEL_PACKAGE_PATTERN = Pattern.compile("org.hl7.fhir.r4.model.", Pattern.LITERAL);
+    private static final Pattern HASH_CODE_PATTERN = Pattern.compile("@[0-9A-Fa-f]{6,8}");
+    private static final Pattern DEFINE_PATTERN = Pattern.compile("^define \"([^\"]+)\"");
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
 
     private final LibraryResolver libraryResolver;
+    private final BlockingQueue<Entry> queue;
+    private final boolean neverBlock;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private Thread worker;
 
     public CqlLogAppender(LibraryResolver libraryResolver) {
+        this(libraryResolver, DEFAULT_QUEUE_SIZE, true);
+    }
+
+    public CqlLogAppender(LibraryResolver libraryResolver, int queueSize, boolean neverBlock) {
         this.libraryResolver = libraryResolver;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.neverBlock = neverBlock;
     }
 
     public static CqlLogAppender start(LoggerContext context, LibraryResolver libraryResolver) {
-        CqlLogAppender appender = new CqlLogAppender(libraryResolver);
+        return start(context, new CqlLogAppender(libraryResolver));
+    }
+
+    public static CqlLogAppender start(LoggerContext context, LibraryResolver libraryResolver, boolean neverBlock) {
+        return start(context, new CqlLogAppender(libraryResolver, DEFAULT_QUEUE_SIZE, neverBlock));
+    }
+
+    private static CqlLogAppender start(LoggerContext context, CqlLogAppender appender) {
         appender.setContext(context);
         appender.start();
         ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("org.opencds.cqf.cql.engine.debug.DebugUtilities");
@@ -36,17 +68,96 @@ public class CqlLogAppender extends AppenderBase<ILoggingEvent> {
         return appender;
     }
 
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        super.start();
+        worker = new Thread(this::work, "cql-log-appender");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops accepting events and waits briefly for the worker to drain events that are already queued.
+     */
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            logger.warn("Timed out draining CQL debug log events; {} remaining", queue.size());
+            worker.interrupt();
+        }
+    }
+
     @Override
     protected void append(ILoggingEvent event) {
-        String message = event.getFormattedMessage();
+        Entry entry = new Entry(event.getFormattedMessage(), event.getMDCPropertyMap());
+        if (neverBlock) {
+            if (!queue.offer(entry)) {
+                droppedCount.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of events dropped since the worker last reported drops.
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private void work() {
+        while (isStarted() || !queue.isEmpty()) {
+            Entry entry;
+            try {
+                entry = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long dropped = droppedCount.getAndSet(0);
+            if (dropped > 0) {
+                logger.warn("Dropped {} CQL debug log events because the queue was full", dropped);
+            }
+            if (entry == null) {
+                continue;
+            }
+            try {
+                if (entry.mdc() != null) {
+                    MDC.setContextMap(entry.mdc());
+                }
+                process(entry.message());
+            } catch (Exception e) {
+                logger.warn("Failed to process CQL debug log event", e);
+            } finally {
+                MDC.clear();
+            }
+        }
+    }
+
+    private void process(String message) {
         Matcher matcher = LOG_PATTERN.matcher(message);
 
         if (matcher.find()) {
             String libraryId = matcher.group(1);
             String range = matcher.group(2);
-            String output = matcher.group(3)
-                    .replaceAll("org.hl7.fhir.r4.model.", "")
-                    .replaceAll("@[0-9A-Fa-f]{6,8}", "");
+            String output = MODEL_PACKAGE_PATTERN.matcher(matcher.group(3)).replaceAll("");
+            output = HASH_CODE_PATTERN.matcher(output).replaceAll("");
             String cql = null;
 
             // Group the resources in the output
@@ -102,8 +213,7 @@ public class CqlLogAppender extends AppenderBase<ILoggingEvent> {
 
     private void processLogEntry(String libraryId, String range, String output, String cql) {
         if (cql != null) {
-            Pattern definePattern = Pattern.compile("^define \"([^\"]+)\"");
-            Matcher matcher = definePattern.matcher(cql);
+            Matcher matcher = DEFINE_PATTERN.matcher(cql);
             if (matcher.find()) {
                 String definition = matcher.group(1);
                 logger.info("CQL DEBUG: libraryId={}, range={}, output={}, cql-definition={}", libraryId, range, output, definition);
@@ -114,4 +224,7 @@ public class CqlLogAppender extends AppenderBase<ILoggingEvent> {
             logger.info("CQL DEBUG: libraryId={}, range={}, output={}", libraryId, range, output);
         }
     }
-}
\ No newline at end of file
+
+    private record Entry(String message, Map<String, String> mdc) {
+    }
+}
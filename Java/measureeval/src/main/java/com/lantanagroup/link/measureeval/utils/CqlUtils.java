@@ -1,84 +1,79 @@
 package com.lantanagroup.link.measureeval.utils;
 
 import javassist.NotFoundException;
-import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Library;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.server.ResponseStatusException;
 
-public class CqlUtils {
-    public static Library getLibrary(Bundle bundle, String libraryId) {
-        return bundle.getEntry().stream()
-                .map(Bundle.BundleEntryComponent::getResource)
-                .filter(Library.class::isInstance)
-                .map(Library.class::cast)
-                .filter(l -> {
-                    if (l.getUrl() == null) {
-                        return false;
-                    }
-
-                    return l.getUrl().endsWith("/" + libraryId);
-                })
-                .findFirst()
-                .orElse(null);
-    }
+import java.util.*;
 
-    public static String getCql(Bundle bundle, String libraryId, String range) throws NotFoundException {
-        Library library = getLibrary(bundle, libraryId);
-        if (library == null) {
-            throw new NotFoundException("Library not found in measure definition bundle");
-        }
-        return getCql(library, range);
-    }
+public class CqlUtils {
+    // Weakly keyed so that libraries from evicted evaluators can be collected
+    private static final Map<Library, CqlSource> cqlSources = Collections.synchronizedMap(new WeakHashMap<>());
 
     public static String getCql(Library library, String range) throws NotFoundException {
-        // Get CQL from library's "content" and base64 decode it
-        String cql = library.getContent().stream()
-                .filter(content -> content.hasContentType() && content.getContentType().equals("text/cql"))
-                .findFirst()
-                .map(content -> new String(content.getData()))
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "CQL content not found in library"));
+        CqlSource source = cqlSources.computeIfAbsent(library, CqlSource::of);
 
         // Find range in CQL
         if (range != null) {
-            // Split range into start and end line/column
-            return CqlUtils.getCqlRange(range, cql);
+            return source.getRange(range);
         }
 
-        return cql;
+        return source.cql;
     }
 
-    private static String getCqlRange(String range, String cql) {
-        String[] rangeParts = range.split(":|-");
+    /**
+     * Decoded CQL along with the offset at which each line starts, so that ranges can be extracted without re-decoding
+     * or re-splitting the library content.
+     */
+    private static class CqlSource {
+        private final String cql;
+        private final int[] lineOffsets;
 
-        if (rangeParts.length != 4) {
-            return cql;
+        private CqlSource(String cql) {
+            this.cql = cql;
+            List<Integer> offsets = new ArrayList<>();
+            offsets.add(0);
+            for (int index = cql.indexOf('\n'); index >= 0; index = cql.indexOf('\n', index + 1)) {
+                offsets.add(index + 1);
+            }
+            this.lineOffsets = offsets.stream().mapToInt(Integer::intValue).toArray();
         }
 
-        int startLine = Integer.parseInt(rangeParts[0]);
-        int startColumn = Integer.parseInt(rangeParts[1]);
-        int endLine = Integer.parseInt(rangeParts[2]);
-        int endColumn = Integer.parseInt(rangeParts[3]);
-
-        // Get the lines from the CQL
-        String[] lines = cql.split("\n");
+        private static CqlSource of(Library library) {
+            // Get CQL from library's "content" and base64 decode it
+            String cql = library.getContent().stream()
+                    .filter(content -> content.hasContentType() && content.getContentType().equals("text/cql"))
+                    .findFirst()
+                    .map(content -> new String(content.getData()))
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "CQL content not found in library"));
+            return new CqlSource(cql);
+        }
 
-        // Get the lines in the range
-        StringBuilder rangeCql = new StringBuilder();
-        for (int i = startLine - 1; i < endLine; i++) {
+        private String getRange(String range) {
+            // Split range into start and end line/column
+            String[] rangeParts = range.split(":|-");
 
-            if (i == startLine - 1) {
-                rangeCql.append(lines[i].substring(startColumn - 1));
-            } else if (i == endLine - 1) {
-                rangeCql.append(lines[i].substring(0, endColumn));
-            } else {
-                rangeCql.append(lines[i]);
+            if (rangeParts.length != 4) {
+                return cql;
             }
-            if (i != endLine - 1) {
-                rangeCql.append("\n");
+
+            int startLine = Integer.parseInt(rangeParts[0]);
+            int startColumn = Integer.parseInt(rangeParts[1]);
+            int endLine = Integer.parseInt(rangeParts[2]);
+            int endColumn = Integer.parseInt(rangeParts[3]);
+
+            if (startLine < 1 || endLine > lineOffsets.length || startLine > endLine) {
+                return cql;
             }
+
+            int start = Math.min(lineOffsets[startLine - 1] + startColumn - 1, cql.length());
+            int end = Math.min(lineOffsets[endLine - 1] + endColumn, getLineEnd(endLine));
+            return start < end ? cql.substring(start, end) : "";
         }
 
-        return rangeCql.toString();
+        private int getLineEnd(int line) {
+            return line < lineOffsets.length ? lineOffsets[line] - 1 : cql.length();
+        }
     }
 }
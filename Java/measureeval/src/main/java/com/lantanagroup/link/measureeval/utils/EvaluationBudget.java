@@ -0,0 +1,71 @@
+package com.lantanagroup.link.measureeval.utils;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Limits how long a measure evaluation may run on the current thread.
+ * The CQL engine cannot be interrupted, so the budget is enforced cooperatively: code that the engine calls into
+ * (e.g., repository reads and searches) calls {@link #checkpoint()}, which aborts the evaluation once its deadline has
+ * passed.
+ */
+public class EvaluationBudget {
+    private static final ThreadLocal<Deadline> deadlines = new ThreadLocal<>();
+
+    /**
+     * Runs an evaluation within a budget; a null or non-positive budget is unlimited.
+     */
+    public static <T> T call(Duration budget, Supplier<T> evaluation) {
+        if (budget == null || budget.isZero() || budget.isNegative()) {
+            return evaluation.get();
+        }
+        Deadline previous = deadlines.get();
+        deadlines.set(new Deadline(budget, System.nanoTime()));
+        try {
+            return evaluation.get();
+        } finally {
+            if (previous == null) {
+                deadlines.remove();
+            } else {
+                deadlines.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Aborts the current thread's evaluation if it has exceeded its budget.
+     */
+    public static void checkpoint() {
+        Deadline deadline = deadlines.get();
+        if (deadline == null) {
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - deadline.startNanos();
+        if (elapsedNanos > deadline.budget().toNanos()) {
+            throw new ExceededException(deadline.budget(), Duration.ofNanos(elapsedNanos));
+        }
+    }
+
+    private record Deadline(Duration budget, long startNanos) {
+    }
+
+    public static class ExceededException extends RuntimeException {
+        private final Duration budget;
+        private final Duration elapsed;
+
+        public ExceededException(Duration budget, Duration elapsed) {
+            super(String.format("Evaluation exceeded its budget of %d ms (cancelled after %d ms)",
+                    budget.toMillis(), elapsed.toMillis()));
+            this.budget = budget;
+            this.elapsed = elapsed;
+        }
+
+        public Duration getBudget() {
+            return budget;
+        }
+
+        public Duration getElapsed() {
+            return elapsed;
+        }
+    }
+}
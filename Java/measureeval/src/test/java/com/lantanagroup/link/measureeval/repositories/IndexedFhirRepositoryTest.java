@@ -0,0 +1,69 @@
+package com.lantanagroup.link.measureeval.repositories;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedFhirRepositoryTest {
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    private static Bundle patientData() {
+        Patient patient = new Patient();
+        patient.setId("Patient/patient1");
+        Encounter encounter = new Encounter();
+        encounter.setId("Encounter/encounter1");
+        encounter.setSubject(new Reference("Patient/patient1"));
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+        bundle.addEntry().setResource(encounter);
+        return bundle;
+    }
+
+    @Test
+    void searchTest() {
+        IndexedFhirRepository repository = new IndexedFhirRepository(fhirContext, patientData());
+
+        Bundle first = repository.search(Bundle.class, Encounter.class, Map.of(), Map.of());
+        Bundle second = repository.search(Bundle.class, Encounter.class, Map.of(), Map.of());
+        assertEquals(1, first.getEntry().size());
+        assertSame(first.getEntry().get(0).getResource(), second.getEntry().get(0).getResource());
+
+        // Each search returns its own bundle
+        first.addEntry().setResource(new Encounter());
+        assertEquals(1, repository.search(Bundle.class, Encounter.class, Map.of(), Map.of()).getEntry().size());
+
+        Encounter encounter = new Encounter();
+        encounter.setId("Encounter/encounter2");
+        repository.update(encounter, Map.of());
+        assertEquals(2, repository.search(Bundle.class, Encounter.class, Map.of(), Map.of()).getEntry().size());
+    }
+
+    @Test
+    void layerTest() {
+        Library library = new Library();
+        library.setId("Library/library1");
+        Encounter measureEncounter = new Encounter();
+        measureEncounter.setId("Encounter/encounter2");
+        Bundle measureBundle = new Bundle();
+        measureBundle.addEntry().setResource(library);
+        measureBundle.addEntry().setResource(measureEncounter);
+        IndexedFhirRepository patientData = new IndexedFhirRepository(fhirContext, patientData());
+        LinkInMemoryFhirRepository repository = new LinkInMemoryFhirRepository(fhirContext, measureBundle, patientData);
+
+        assertNotNull(repository.read(Patient.class, new IdType("Patient/patient1")));
+        assertNotNull(repository.read(Library.class, new IdType("Library/library1")));
+        assertEquals(1, repository.search(Bundle.class, Patient.class, Map.of(), Map.of()).getEntry().size());
+        assertEquals(2, repository.search(Bundle.class, Encounter.class, Map.of(), Map.of()).getEntry().size());
+
+        // Writes go to the measure's layer only
+        Patient patient = new Patient();
+        patient.setId("Patient/patient2");
+        repository.update(patient, Map.of());
+        assertEquals(1, patientData.search(Bundle.class, Patient.class, Map.of(), Map.of()).getEntry().size());
+        assertEquals(2, repository.search(Bundle.class, Patient.class, Map.of(), Map.of()).getEntry().size());
+    }
+}
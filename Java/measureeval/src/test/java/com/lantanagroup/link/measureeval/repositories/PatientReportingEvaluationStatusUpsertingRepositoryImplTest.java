@@ -0,0 +1,56 @@
+package com.lantanagroup.link.measureeval.repositories;
+
+import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.ExecutableUpdateOperation;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class PatientReportingEvaluationStatusUpsertingRepositoryImplTest {
+    private static PatientReportingEvaluationStatus.Report report(String entryId, boolean reportable) {
+        PatientReportingEvaluationStatus.Report report = new PatientReportingEvaluationStatus.Report();
+        report.setEntryId(entryId);
+        report.setReportType("Measure1");
+        report.setReportTrackingId("report1");
+        report.setReportable(reportable);
+        return report;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void updateReportabilityTest() {
+        MongoOperations mongoOperations = mock(MongoOperations.class);
+        ExecutableUpdateOperation.ExecutableUpdate<PatientReportingEvaluationStatus> executableUpdate =
+                mock(ExecutableUpdateOperation.ExecutableUpdate.class);
+        ExecutableUpdateOperation.TerminatingUpdate<PatientReportingEvaluationStatus> terminatingUpdate =
+                mock(ExecutableUpdateOperation.TerminatingUpdate.class);
+        ArgumentCaptor<Update> captor = ArgumentCaptor.forClass(Update.class);
+        when(mongoOperations.update(PatientReportingEvaluationStatus.class)).thenReturn(executableUpdate);
+        when(executableUpdate.matching(any(Query.class))).thenReturn(executableUpdate);
+        when(executableUpdate.apply(captor.capture())).thenReturn(terminatingUpdate);
+
+        // Two reports of the same type and tracking ID, plus one stored before entry IDs were introduced
+        PatientReportingEvaluationStatus entity = new PatientReportingEvaluationStatus();
+        entity.setPatientId("patient1");
+        entity.setReports(List.of(report("entry1", true), report("entry2", false), report(null, true)));
+        new PatientReportingEvaluationStatusUpsertingRepositoryImpl(mongoOperations).updateReportability(entity);
+
+        Document set = captor.getValue().getUpdateObject().get("$set", Document.class);
+        assertEquals(true, set.get("reports.$[r0].reportable"));
+        assertEquals(false, set.get("reports.$[r1].reportable"));
+        assertEquals(true, set.get("reports.2.reportable"));
+        assertEquals(List.of(new Document("r0.entryId", "entry1"), new Document("r1.entryId", "entry2")),
+                captor.getValue().getArrayFilters().stream().map(Update.ArrayFilter::asDocument).toList());
+        verify(terminatingUpdate).first();
+        assertNotNull(entity.getModifiedDate());
+    }
+}
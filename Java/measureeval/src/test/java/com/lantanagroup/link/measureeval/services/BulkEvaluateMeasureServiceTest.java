@@ -0,0 +1,172 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkEvaluateMeasureServiceTest {
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private BulkEvaluateMeasureService service;
+
+    @BeforeEach
+    void setup() {
+        LinkConfig linkConfig = new LinkConfig();
+        linkConfig.setBulkEvaluationThreads(2);
+        service = new BulkEvaluateMeasureService(fhirContext, linkConfig);
+    }
+
+    @AfterEach
+    void teardown() {
+        service.close();
+    }
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        return patient;
+    }
+
+    private static Encounter encounter(String id, String patientId) {
+        Encounter encounter = new Encounter();
+        encounter.setId(id);
+        encounter.setSubject(new Reference("Patient/" + patientId));
+        return encounter;
+    }
+
+    @Test
+    void groupByPatientTest() {
+        Location location = new Location();
+        location.setId("location1");
+        Map<String, Bundle> bundles = service.groupByPatient(List.of(
+                patient("patient1"),
+                patient("patient2"),
+                encounter("encounter1", "patient1"),
+                encounter("encounter2", "patient2"),
+                encounter("encounter3", "patient3"),
+                location));
+
+        assertEquals(List.of("patient1", "patient2"), List.copyOf(bundles.keySet()));
+        assertEquals(
+                List.of("patient1", "encounter1", "location1"),
+                bundles.get("patient1").getEntry().stream()
+                        .map(entry -> entry.getResource().getIdPart())
+                        .toList());
+        assertEquals(3, bundles.get("patient2").getEntry().size());
+    }
+
+    @Test
+    void groupByPatientNdjsonTest() throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient("patient1"));
+        bundle.addEntry().setResource(encounter("encounter1", "patient1"));
+        String ndjson = String.join("\n",
+                fhirContext.newJsonParser().encodeResourceToString(bundle),
+                "",
+                fhirContext.newJsonParser().encodeResourceToString(patient("patient2")));
+
+        Map<String, Bundle> bundles = service.readNdjson(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(2, bundles.get("patient1").getEntry().size());
+        assertEquals(1, bundles.get("patient2").getEntry().size());
+    }
+
+    @Test
+    void groupByPatientWithoutPatientsTest() {
+        assertThrows(IllegalArgumentException.class,
+                () -> service.groupByPatient(List.of(encounter("encounter1", "patient1"))));
+    }
+
+    @Test
+    void readNdjsonOutOfOrderTest() throws Exception {
+        String ndjson = String.join("\n",
+                fhirContext.newJsonParser().encodeResourceToString(encounter("encounter1", "patient1")),
+                fhirContext.newJsonParser().encodeResourceToString(patient("patient1")));
+
+        Map<String, Bundle> bundles = service.readNdjson(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(2, bundles.get("patient1").getEntry().size());
+        assertInstanceOf(Patient.class, bundles.get("patient1").getEntryFirstRep().getResource());
+    }
+
+    @Test
+    void readNdjsonTooLargeTest() {
+        LinkConfig linkConfig = new LinkConfig();
+        linkConfig.setBulkEvaluationThreads(1);
+        linkConfig.setBulkEvaluationMaxRequestSize(DataSize.ofBytes(32));
+        BulkEvaluateMeasureService limitedService = new BulkEvaluateMeasureService(fhirContext, linkConfig);
+        try {
+            byte[] ndjson = "{\"resourceType\":\"Patient\",\"id\":\"patient1\"}\n".repeat(2)
+                    .getBytes(StandardCharsets.UTF_8);
+            IllegalArgumentException exception = assertThrows(IllegalArgumentException.class,
+                    () -> limitedService.readNdjson(new ByteArrayInputStream(ndjson)));
+            assertTrue(exception.getMessage().contains("line 1"));
+        } finally {
+            limitedService.close();
+        }
+    }
+
+    @Test
+    void readNdjsonInvalidLineTest() {
+        byte[] ndjson = "{\"resourceType\":\"Patient\",\"id\":\"patient1\"}\nnot json".getBytes(StandardCharsets.UTF_8);
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class,
+                () -> service.readNdjson(new ByteArrayInputStream(ndjson)));
+        assertTrue(exception.getMessage().contains("line 2"));
+    }
+
+    @Test
+    void summarizeTest() {
+        MeasureReport summary = service.summarize(List.of(report(1, 0), report(1, 1), report(0, 0)));
+
+        assertEquals(MeasureReport.MeasureReportType.SUMMARY, summary.getType());
+        assertEquals(1, summary.getGroup().size());
+        assertEquals(2, summary.getGroupFirstRep().getPopulation().get(0).getCount());
+        assertEquals(1, summary.getGroupFirstRep().getPopulation().get(1).getCount());
+    }
+
+    @Test
+    void evaluateTest() throws Exception {
+        Bundle measureBundle = KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle();
+        MeasureEvaluator evaluator = MeasureEvaluator.compile(fhirContext, measureBundle, false);
+        Map<String, Bundle> bundles = service.groupByPatient(List.of(patient("patient1"), patient("patient2")));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        service.evaluate(
+                evaluator,
+                new DateTimeType("2024-01-01T00:00:00Z"),
+                new DateTimeType("2024-01-31T23:59:59Z"),
+                bundles,
+                true,
+                outputStream);
+
+        List<String> lines = outputStream.toString(StandardCharsets.UTF_8).lines().toList();
+        assertEquals(3, lines.size());
+        MeasureReport summary = (MeasureReport) fhirContext.newJsonParser().parseResource(lines.get(2));
+        assertEquals(MeasureReport.MeasureReportType.SUMMARY, summary.getType());
+    }
+
+    private static MeasureReport report(int initialPopulation, int numerator) {
+        MeasureReport report = new MeasureReport();
+        report.setMeasure("http://example.com/Measure/measure1");
+        MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+        group.setId("group1");
+        group.addPopulation()
+                .setCode(new CodeableConcept(new Coding(null, "initial-population", null)))
+                .setCount(initialPopulation);
+        group.addPopulation()
+                .setCode(new CodeableConcept(new Coding(null, "numerator", null)))
+                .setCount(numerator);
+        return report;
+    }
+}
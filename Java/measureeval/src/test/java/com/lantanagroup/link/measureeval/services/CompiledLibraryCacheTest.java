@@ -0,0 +1,89 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompiledLibraryCacheTest {
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    @Test
+    void shareTest() {
+        CompiledLibraryCache cache = new CompiledLibraryCache();
+
+        MeasureEvaluator first = MeasureEvaluator.compile(
+                fhirContext, KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle(), false, null, cache, null);
+        assertEquals(1, cache.getSize());
+        assertEquals(0, cache.getHits());
+        assertFalse(cache.getModelCache().isEmpty());
+
+        // The same library in another bundle is not compiled again
+        MeasureEvaluator second = MeasureEvaluator.compile(
+                fhirContext, KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle(), false, null, cache, null);
+        assertEquals(1, cache.getSize());
+        assertTrue(cache.getHits() > 0);
+
+        // Shared libraries are held only by evaluators
+        assertNotNull(first);
+        assertNotNull(second);
+    }
+
+    @Test
+    void contentTest() {
+        CompiledLibraryCache cache = new CompiledLibraryCache();
+        Bundle changed = KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle();
+        for (Bundle.BundleEntryComponent entry : changed.getEntry()) {
+            if (entry.getResource() instanceof Library library) {
+                library.setDescription("Changed");
+            }
+        }
+
+        MeasureEvaluator first = MeasureEvaluator.compile(
+                fhirContext, KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle(), false, null, cache, null);
+        MeasureEvaluator second = MeasureEvaluator.compile(fhirContext, changed, false, null, cache, null);
+
+        // Same canonical URL and version, but different content
+        assertEquals(2, cache.getSize());
+        assertEquals(0, cache.getHits());
+        assertNotNull(first);
+        assertNotNull(second);
+    }
+
+    @Test
+    void elmTest() throws IOException {
+        CompiledLibraryCache cache = new CompiledLibraryCache();
+        Bundle bundle = KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle();
+        var elm = MeasureEvaluator.compile(fhirContext, bundle, false).getElm();
+
+        // Libraries loaded from ELM are not shared
+        MeasureEvaluator first = MeasureEvaluator.compile(fhirContext, bundle, false, null, cache, elm);
+        assertEquals(elm.keySet(), first.getLibrariesLoadedFromElm());
+        assertEquals(0, cache.getSize());
+
+        // So another evaluator translates the library itself, and shares that
+        MeasureEvaluator second = MeasureEvaluator.compile(fhirContext, bundle, false, null, cache, null);
+        assertEquals(1, cache.getSize());
+        assertEquals(0, cache.getHits());
+        assertNotNull(second);
+    }
+
+    @Test
+    void translateTest() throws IOException {
+        CompiledLibraryCache cache = new CompiledLibraryCache();
+        Bundle bundle = KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle();
+
+        // Translating shares libraries as compiling does
+        var elm = MeasureEvaluator.translate(fhirContext, bundle, cache).getElm();
+        assertEquals(1, elm.size());
+        assertEquals(1, cache.getSize());
+
+        MeasureEvaluator evaluator = MeasureEvaluator.compile(fhirContext, bundle, false, null, cache, null);
+        assertTrue(cache.getHits() > 0);
+        assertEquals(elm, evaluator.getElm());
+    }
+}
@@ -190,4 +190,26 @@ public class CqlLibraries {
             define function "Measure Observation"(Encounter "Encounter"):
               24""";
 
+    public static final String COHORT_IP_TRUE_WITH_FHIRHELPERS = """
+            library CohortLibraryWithFHIRHelpers version '1.0.0'
+
+            using FHIR version '4.0.1'
+
+            include FHIRHelpers version '4.0.1' called FHIRHelpers
+
+            parameter "Measurement Period" Interval<DateTime>
+
+            context Patient
+
+            define "Initial Population":
+              exists "Finished Encounters"
+
+            define "Finished Encounters":
+              ["Encounter"] E
+                where "Is Finished"(E)
+                  and E.period during "Measurement Period"
+
+            define function "Is Finished"(encounter Encounter):
+              encounter.status = 'finished'""";
+
 }
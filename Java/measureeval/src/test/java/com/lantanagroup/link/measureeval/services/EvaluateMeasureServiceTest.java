@@ -1,19 +1,26 @@
 package com.lantanagroup.link.measureeval.services;
 
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.CqlProfilingSettings;
 import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
+import com.lantanagroup.link.measureeval.repositories.IndexedFhirRepository;
 import com.lantanagroup.link.measureeval.repositories.PatientReportingEvaluationStatusRepository;
+import com.lantanagroup.link.measureeval.utils.EvaluationBudget;
 import com.lantanagroup.link.shared.utils.DiagnosticNames;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.Date;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -38,6 +45,10 @@ class EvaluateMeasureServiceTest {
 
     private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
 
+    private static IndexedFhirRepository indexing(Bundle bundle) {
+        return argThat(patientData -> patientData != null && patientData.getBundle() == bundle);
+    }
+
     @BeforeEach
     void setup() {
         MockitoAnnotations.openMocks(this);
@@ -70,7 +81,7 @@ class EvaluateMeasureServiceTest {
         when(patientStatusRepository.insert(any(PatientReportingEvaluationStatus.class))).thenReturn(patientStatus);
         when(measureEvaluatorCache.get(anyString())).thenReturn(measureEvaluator);
         when(measureEvaluatorCache.get("measureId")).thenReturn(measureEvaluator);
-        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), any(String.class), any(Bundle.class))).thenReturn(mockMeasureReport);
+        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), any(String.class), any(IndexedFhirRepository.class))).thenReturn(mockMeasureReport);
 
         // Act
         MeasureReport result = evaluateMeasureService.evaluateMeasure(patientStatus, report, bundle);
@@ -100,7 +111,7 @@ class EvaluateMeasureServiceTest {
         MeasureReport expectedReport = new MeasureReport();
 
         when(measureEvaluatorCache.get("measure-1")).thenReturn(measureEvaluator);
-        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), eq("patient-1"), eq(bundle)))
+        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), eq("patient-1"), indexing(bundle)))
                 .thenReturn(expectedReport);
 
         // Act
@@ -156,7 +167,7 @@ class EvaluateMeasureServiceTest {
         MeasureReport expectedReport = new MeasureReport();
 
         when(measureEvaluatorCache.get("measure-1")).thenReturn(measureEvaluator);
-        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), eq("patient-1"), eq(bundle)))
+        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), eq("patient-1"), indexing(bundle)))
                 .thenReturn(expectedReport);
 
         MeasureReport actualReport = evaluateMeasureService.evaluateMeasure(queryType, patientStatus, report, bundle);
@@ -176,4 +187,140 @@ class EvaluateMeasureServiceTest {
         assertEquals("measure-1", attributes.get(io.opentelemetry.api.common.AttributeKey.stringKey(DiagnosticNames.REPORT_TYPE)));
         assertEquals("test-query", attributes.get(io.opentelemetry.api.common.AttributeKey.stringKey(DiagnosticNames.QUERY_TYPE)));
     }
+
+    @Test
+    void testEvaluateMeasures_sharesIdenticalEvaluations() throws Exception {
+        PatientReportingEvaluationStatus patientStatus = new PatientReportingEvaluationStatus();
+        patientStatus.setPatientId("patient-1");
+
+        PatientReportingEvaluationStatus.Report first = new PatientReportingEvaluationStatus.Report();
+        first.setReportType("measure-1");
+        first.setStartDate(sdf.parse("2025-01-01"));
+        first.setEndDate(sdf.parse("2025-01-31"));
+        first.setReportTrackingId("report-1");
+        PatientReportingEvaluationStatus.Report second = new PatientReportingEvaluationStatus.Report();
+        second.setReportType("measure-1");
+        second.setStartDate(sdf.parse("2025-01-01"));
+        second.setEndDate(sdf.parse("2025-01-31"));
+        second.setReportTrackingId("report-2");
+        PatientReportingEvaluationStatus.Report third = new PatientReportingEvaluationStatus.Report();
+        third.setReportType("measure-1");
+        third.setStartDate(sdf.parse("2025-02-01"));
+        third.setEndDate(sdf.parse("2025-02-28"));
+        third.setReportTrackingId("report-3");
+
+        Bundle bundle = new Bundle();
+
+        when(measureEvaluatorCache.get("measure-1")).thenReturn(measureEvaluator);
+        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), eq("patient-1"), indexing(bundle)))
+                .thenAnswer(invocation -> new MeasureReport());
+
+        List<MeasureReport> measureReports =
+                evaluateMeasureService.evaluateMeasures("test-query", patientStatus, List.of(first, second, third), bundle);
+
+        // The first two reports share an evaluation but not a measure report
+        assertEquals(3, measureReports.size());
+        assertNotSame(measureReports.get(0), measureReports.get(1));
+        // Every evaluation shares the patient's indexed data
+        ArgumentCaptor<IndexedFhirRepository> patientData = ArgumentCaptor.forClass(IndexedFhirRepository.class);
+        verify(measureEvaluator, times(2)).evaluate(any(Date.class), any(Date.class), eq("patient-1"), patientData.capture());
+        assertSame(patientData.getAllValues().get(0), patientData.getAllValues().get(1));
+        assertSame(bundle, patientData.getValue().getBundle());
+    }
+
+    @Test
+    void testEvaluateMeasure_exceedsBudget_throwsException() throws Exception {
+        PatientReportingEvaluationStatus patientStatus = new PatientReportingEvaluationStatus();
+        patientStatus.setPatientId("patient-1");
+        patientStatus.setFacilityId("facility-1");
+
+        PatientReportingEvaluationStatus.Report report = new PatientReportingEvaluationStatus.Report();
+        report.setReportType("measure-1");
+        report.setStartDate(sdf.parse("2025-01-01"));
+        report.setEndDate(sdf.parse("2025-01-31"));
+
+        Bundle bundle = new Bundle();
+        evaluateMeasureService = new EvaluateMeasureService(
+                measureEvaluatorCache, measureEvalMetrics, Duration.ofMillis(10), new CqlProfilingSettings());
+
+        // Stands in for the engine retrieving data after a long-running expression
+        when(measureEvaluatorCache.get("measure-1")).thenReturn(measureEvaluator);
+        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), eq("patient-1"), indexing(bundle)))
+                .thenAnswer(invocation -> {
+                    Thread.sleep(50);
+                    EvaluationBudget.checkpoint();
+                    return new MeasureReport();
+                });
+
+        IllegalStateException exception = assertThrows(IllegalStateException.class, () ->
+                evaluateMeasureService.evaluateMeasure(patientStatus, report, bundle));
+
+        assertInstanceOf(EvaluationBudget.ExceededException.class, exception.getCause());
+        assertTrue(exception.getMessage().contains("measure=measure-1"));
+        verify(measureEvalMetrics).IncrementEvaluationBudgetOverrunCounter(any());
+
+        // The budget applies only within the evaluation
+        assertDoesNotThrow(EvaluationBudget::checkpoint);
+    }
+
+    @Test
+    void testEvaluateMeasure_profilesAfterEvaluation() throws Exception {
+        PatientReportingEvaluationStatus patientStatus = new PatientReportingEvaluationStatus();
+        patientStatus.setPatientId("patient-1");
+        patientStatus.setFacilityId("facility-1");
+
+        PatientReportingEvaluationStatus.Report report = new PatientReportingEvaluationStatus.Report();
+        report.setReportType("measure-1");
+        report.setStartDate(sdf.parse("2025-01-01"));
+        report.setEndDate(sdf.parse("2025-01-31"));
+
+        Bundle bundle = new Bundle();
+        CqlProfilingSettings profilingSettings = new CqlProfilingSettings();
+        profilingSettings.setSampleRate(1);
+        evaluateMeasureService = new EvaluateMeasureService(
+                measureEvaluatorCache, measureEvalMetrics, Duration.ofMillis(10), profilingSettings);
+
+        when(measureEvaluatorCache.get("measure-1")).thenReturn(measureEvaluator);
+        when(measureEvaluator.evaluate(any(Date.class), any(Date.class), eq("patient-1"), indexing(bundle)))
+                .thenReturn(new MeasureReport());
+        // Profiling takes longer than the budget, which must not apply to it
+        when(measureEvaluator.profile(any(Date.class), any(Date.class), eq("patient-1"), indexing(bundle)))
+                .thenAnswer(invocation -> {
+                    Thread.sleep(50);
+                    EvaluationBudget.checkpoint();
+                    return new CqlProfile(List.of(new CqlProfile.Entry("Library1", "Definition1", 1000L, null)));
+                });
+
+        assertNotNull(evaluateMeasureService.evaluateMeasure(patientStatus, report, bundle));
+
+        InOrder inOrder = inOrder(measureEvalMetrics);
+        inOrder.verify(measureEvalMetrics).MeasureEvalDuration(anyLong(), any());
+        inOrder.verify(measureEvalMetrics).CqlDefinitionDuration(eq("Library1"), eq("Definition1"), eq(1000L), any());
+    }
+
+    @Test
+    void testEvaluateMeasure_exceedsBudgetInEngine_throwsException() throws Exception {
+        PatientReportingEvaluationStatus patientStatus = new PatientReportingEvaluationStatus();
+        patientStatus.setPatientId("Patient/simple-patient");
+        patientStatus.setFacilityId("facility-1");
+
+        PatientReportingEvaluationStatus.Report report = new PatientReportingEvaluationStatus.Report();
+        report.setReportType("measure-1");
+        report.setStartDate(sdf.parse("2024-01-01"));
+        report.setEndDate(sdf.parse("2024-12-31"));
+
+        Bundle bundle = PatientDataBuilder.simplePatientAndEncounterBundle();
+        evaluateMeasureService = new EvaluateMeasureService(
+                measureEvaluatorCache, measureEvalMetrics, Duration.ofNanos(1), new CqlProfilingSettings());
+
+        // The engine wraps the overrun thrown from its first retrieve
+        when(measureEvaluatorCache.get("measure-1")).thenReturn(MeasureEvaluator.compile(
+                FhirContext.forR4Cached(), KnowledgeArtifactBuilder.CohortMeasureWithFHIRHelpers.bundle(), false));
+
+        IllegalStateException exception = assertThrows(IllegalStateException.class, () ->
+                evaluateMeasureService.evaluateMeasure(patientStatus, report, bundle));
+
+        assertInstanceOf(EvaluationBudget.ExceededException.class, exception.getCause());
+        verify(measureEvalMetrics).IncrementEvaluationBudgetOverrunCounter(any());
+    }
 }
@@ -2,6 +2,8 @@ package com.lantanagroup.link.measureeval.services;
 
 import org.hl7.fhir.r4.model.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -338,6 +340,58 @@ public class KnowledgeArtifactBuilder {
         }
     }
 
+    /**
+     * Nested utility class for building resources for a "Cohort Measure with FHIRHelpers" scenario where the evaluation result is expected to be true.
+     * This class creates a {@link Measure}, {@link Library}, and {@link Bundle} whose library includes FHIRHelpers and defines a function.
+     */
+    static class CohortMeasureWithFHIRHelpers {
+        private static final String MEASURE_ID = "CohortMeasureWithFHIRHelpers";
+        private static final String LIBRARY_ID = "CohortLibraryWithFHIRHelpers";
+        private static final String MEASURE_URL = BASE_MEASURE_URL + MEASURE_ID;
+        private static final String LIBRARY_URL = BASE_LIBRARY_URL + LIBRARY_ID;
+
+        /**
+         * Builds the {@link Measure} resource for the "Cohort Measure with FHIRHelpers" scenario.
+         *
+         * @return A {@link Measure} resource with the cohort scoring type and an initial population definition.
+         */
+        public static Measure measure() {
+            return MeasureBuilder.build(MEASURE_ID, MEASURE_URL, LIBRARY_URL, "cohort", MeasurePopulationGroup.initialPopulation());
+        }
+
+        /**
+         * Builds the {@link Library} resource for the "Cohort Measure with FHIRHelpers" scenario.
+         *
+         * @return A {@link Library} resource containing CQL logic for evaluating the initial population using a function, expected to evaluate to true.
+         */
+        public static Library library() {
+            return LibraryBuilder.build(LIBRARY_ID, "1.0.0", LIBRARY_ID, LIBRARY_URL, CqlLibraries.COHORT_IP_TRUE_WITH_FHIRHELPERS);
+        }
+
+        /**
+         * Builds the FHIRHelpers {@link Library} resource from the CQL distributed with the translator.
+         *
+         * @return A {@link Library} resource containing FHIRHelpers 4.0.1.
+         */
+        public static Library fhirHelpers() {
+            try (var in = KnowledgeArtifactBuilder.class.getClassLoader().getResourceAsStream("org/hl7/fhir/FHIRHelpers-4.0.1.cql")) {
+                var cql = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                return LibraryBuilder.build("FHIRHelpers", "4.0.1", "FHIRHelpers", "http://hl7.org/fhir/Library/FHIRHelpers", cql);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Builds a {@link Bundle} resource containing the {@link Measure} and {@link Library} resources for the "Cohort Measure with FHIRHelpers" scenario.
+         *
+         * @return A {@link Bundle} resource containing the measure, its library, and FHIRHelpers.
+         */
+        public static Bundle bundle() {
+            return BundleBuilder.build(library(), fhirHelpers(), measure());
+        }
+    }
+
     /**
      * Nested utility class for building resources for a "Simple Proportion Measure" scenario where all conditions are true and there are no exclusions.
      * This class creates a {@link Measure}, {@link Library}, and {@link Bundle} to represent a proportion measure with an initial population, numerator, and denominator.
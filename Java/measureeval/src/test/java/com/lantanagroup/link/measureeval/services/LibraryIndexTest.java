@@ -0,0 +1,80 @@
+package com.lantanagroup.link.measureeval.services;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LibraryIndexTest {
+    private static final String URL = "http://example.com/fhir/Library/LibraryUrlName";
+
+    private static Library library(String id, String url, String name, String version) {
+        Library library = new Library();
+        library.setId(id);
+        library.setUrl(url);
+        library.setName(name);
+        library.setVersion(version);
+        return library;
+    }
+
+    private static Bundle bundle(Library... libraries) {
+        Bundle bundle = new Bundle();
+        for (Library library : libraries) {
+            bundle.addEntry().setResource(library);
+        }
+        return bundle;
+    }
+
+    @Test
+    void keyTest() {
+        Library library = library("library-id", URL, "LibraryName", "1.0.0");
+        LibraryIndex index = LibraryIndex.of(bundle(library));
+
+        assertSame(library, index.resolve("LibraryUrlName"));
+        assertSame(library, index.resolve(URL));
+        assertSame(library, index.resolve("LibraryUrlName|1.0.0"));
+        assertSame(library, index.resolve(URL + "|1.0.0"));
+        assertSame(library, index.resolve("library-id"));
+        assertSame(library, index.resolve("LibraryName"));
+        assertSame(library, index.resolve(URL, "1.0.0"));
+        assertSame(library, index.resolve(URL, null));
+
+        assertNull(index.resolve("LibraryUrlName|2.0.0"));
+        assertNull(index.resolve(null));
+    }
+
+    @Test
+    void unversionedTest() {
+        Library library = library("library-id", URL, "LibraryName", null);
+        LibraryIndex index = LibraryIndex.of(bundle(library));
+
+        assertSame(library, index.resolve(URL));
+        assertNull(index.resolve(URL + "|null"));
+    }
+
+    @Test
+    void precedenceTest() {
+        // The second library's ID and name collide with the first library's URL-based name
+        Library first = library("first", URL, "First", "1.0.0");
+        Library second = library("LibraryUrlName", "http://example.com/fhir/Library/Second", "LibraryUrlName", null);
+        LibraryIndex index = LibraryIndex.of(bundle(second, first));
+
+        assertSame(first, index.resolve("LibraryUrlName"));
+        assertSame(second, index.resolve("Second"));
+    }
+
+    @Test
+    void mergeTest() {
+        Library first = library("first", URL, "Name", "1.0.0");
+        Library second = library("second", URL, "Name", "2.0.0");
+        LibraryIndex index = LibraryIndex.merge(List.of(LibraryIndex.of(bundle(first)), LibraryIndex.of(bundle(second))));
+
+        assertSame(first, index.resolve(URL));
+        assertSame(second, index.resolve(URL, "2.0.0"));
+        assertSame(second, index.resolve("second"));
+        assertNull(LibraryIndex.EMPTY.resolve(URL));
+    }
+}
@@ -0,0 +1,251 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.MeasureDefinition;
+import com.lantanagroup.link.measureeval.repositories.MeasureDefinitionRepository;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MeasureEvaluatorCacheTest {
+    private static final String ID = "measure1";
+    private static final String OTHER_ID = "measure2";
+
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private final MeasureDefinition measureDefinition = new MeasureDefinition();
+    private final MeasureDefinition otherMeasureDefinition = new MeasureDefinition();
+    private final LinkConfig linkConfig = new LinkConfig();
+    private MeasureDefinitionRepository repository;
+    private MeasureEvaluatorCache cache;
+
+    @BeforeEach
+    void setup() {
+        measureDefinition.setId(ID);
+        measureDefinition.setBundle(KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle());
+        otherMeasureDefinition.setId(OTHER_ID);
+        otherMeasureDefinition.setBundle(KnowledgeArtifactBuilder.SimpleCohortMeasureFalse.bundle());
+        cache = newCache(new EvaluatorSnapshotStore((Path) null));
+    }
+
+    private MeasureEvaluatorCache newCache(EvaluatorSnapshotStore snapshotStore) {
+        repository = mock(MeasureDefinitionRepository.class);
+        when(repository.findById(ID)).thenReturn(Optional.of(measureDefinition));
+        when(repository.findById(OTHER_ID)).thenReturn(Optional.of(otherMeasureDefinition));
+        return new MeasureEvaluatorCache(
+                fhirContext, repository, linkConfig, new ValueSetExpansionCache(Long.MAX_VALUE),
+                new CompiledLibraryCache(), snapshotStore);
+    }
+
+    /**
+     * Replaces the CQL in the measure definition's bundle with CQL that does not translate.
+     */
+    private void breakCql() {
+        for (Bundle.BundleEntryComponent entry : measureDefinition.getBundle().getEntry()) {
+            if (entry.getResource() instanceof Library library) {
+                for (Attachment content : library.getContent()) {
+                    if ("text/cql".equals(content.getContentType())) {
+                        content.setData("library Broken version '1.0.0' define Broken: (".getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void translateTest() {
+        cache.translate(measureDefinition);
+
+        assertNotNull(measureDefinition.getElmTranslatorVersion());
+        assertEquals(1, measureDefinition.getElm().size());
+        assertEquals("CohortLibraryTrue", measureDefinition.getElm().get(0).getLibraryName());
+
+        // Only the stored ELM can be compiled now
+        breakCql();
+        assertNotNull(cache.get(ID));
+    }
+
+    @Test
+    void translatorVersionTest() {
+        cache.translate(measureDefinition);
+        measureDefinition.setElmTranslatorVersion("0.0.0");
+        breakCql();
+
+        assertThrows(Exception.class, () -> cache.get(ID));
+    }
+
+    @Test
+    void snapshotTest(@TempDir Path directory) {
+        EvaluatorSnapshotStore snapshotStore = new EvaluatorSnapshotStore(directory);
+        assertNotNull(newCache(snapshotStore).get(ID));
+        assertEquals(List.of(ID), snapshotStore.getIds());
+
+        // A restarted instance compiles from the snapshot, without the CQL
+        breakCql();
+        assertNotNull(newCache(snapshotStore).get(ID));
+
+        // Until the measure definition changes
+        measureDefinition.setVersion(measureDefinition.getVersion() + 1);
+        assertThrows(Exception.class, () -> newCache(snapshotStore).get(ID));
+        assertEquals(List.of(), snapshotStore.getIds());
+    }
+
+    @Test
+    void restoreTest(@TempDir Path directory) throws IOException {
+        EvaluatorSnapshotStore snapshotStore = new EvaluatorSnapshotStore(directory);
+        MeasureEvaluatorCache snapshotting = newCache(snapshotStore);
+        snapshotting.get(OTHER_ID);
+        snapshotting.get(ID);
+        // As estimated when compiled from the snapshot
+        MeasureEvaluatorCache fromSnapshot = newCache(snapshotStore);
+        fromSnapshot.get(ID);
+        long estimatedBytes = fromSnapshot.getEstimatedBytesById().get(ID);
+        Files.setLastModifiedTime(directory.resolve(OTHER_ID + ".json"), FileTime.fromMillis(1000L));
+        Files.setLastModifiedTime(directory.resolve(ID + ".json"), FileTime.fromMillis(2000L));
+        assertEquals(List.of(ID, OTHER_ID), snapshotStore.getIds());
+
+        // Room for the most recently used evaluator only
+        linkConfig.setEvaluatorCacheSize(DataSize.ofBytes(estimatedBytes));
+        MeasureEvaluatorCache restored = newCache(snapshotStore);
+        restored.restore(snapshotStore.getIds());
+        assertEquals(Set.of(ID), restored.getEstimatedBytesById().keySet());
+
+        // Use is recorded on the snapshot
+        restored.get(ID);
+        assertTrue(Files.getLastModifiedTime(directory.resolve(ID + ".json")).toMillis() > 2000L);
+    }
+
+    @Test
+    void refreshTest() throws InterruptedException {
+        MeasureEvaluator original = cache.get(ID);
+        assertEquals(Map.of(ID, 0L), cache.getVersions());
+
+        // The cached version is current
+        cache.refresh(ID, 0);
+        assertSame(original, cache.get(ID));
+
+        // A newer version is compiled in the background and swapped in
+        measureDefinition.setVersion(1);
+        cache.refresh(ID, 1);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (cache.getVersions().get(ID) != 1L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(Map.of(ID, 1L), cache.getVersions());
+        assertNotSame(original, cache.get(ID));
+    }
+
+    @Test
+    void refreshWhileCompilingTest() throws InterruptedException {
+        MeasureDefinition updated = new MeasureDefinition();
+        updated.setId(ID);
+        updated.setVersion(1);
+        updated.setBundle(measureDefinition.getBundle());
+        // Version 1 is announced after version 0 is read, but before it is cached
+        when(repository.findById(ID))
+                .thenAnswer(invocation -> {
+                    cache.refresh(ID, 1);
+                    return Optional.of(measureDefinition);
+                })
+                .thenReturn(Optional.of(updated));
+
+        cache.get(ID);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (cache.getVersions().get(ID) != 1L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(Map.of(ID, 1L), cache.getVersions());
+    }
+
+    @Test
+    void evictionTest() {
+        MeasureEvaluator first = cache.get(ID);
+        long estimatedBytes = cache.getEstimatedBytes();
+        assertTrue(estimatedBytes > 0);
+        assertSame(first, cache.get(ID));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getCompilations());
+
+        // Room for one evaluator only
+        linkConfig.setEvaluatorCacheSize(DataSize.ofBytes(estimatedBytes));
+        cache = newCache(new EvaluatorSnapshotStore((Path) null));
+        cache.get(ID);
+        cache.get(OTHER_ID);
+        assertEquals(Set.of(OTHER_ID), cache.getEstimatedBytesById().keySet());
+
+        // The least recently used evaluator is compiled again on next use
+        assertNotSame(first, cache.get(ID));
+        assertEquals(Set.of(ID), cache.getEstimatedBytesById().keySet());
+        assertEquals(3, cache.getCompilations());
+    }
+
+    @Test
+    void estimateTest() throws IOException {
+        Bundle bundle = KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle();
+        MeasureEvaluator evaluator = MeasureEvaluator.compile(fhirContext, bundle, false);
+        long estimatedBytes = evaluator.estimateRetainedBytes();
+        assertTrue(estimatedBytes > 0);
+
+        // ValueSets are accounted for by the expansion cache
+        bundle.addEntry().setResource(ValueSetBuilder.inpatientEncounter());
+        assertEquals(estimatedBytes, evaluator.estimateRetainedBytes());
+
+        // Libraries loaded from ELM are held by the evaluator alone, so they count against it
+        MeasureEvaluator loaded = MeasureEvaluator.compile(
+                fhirContext, bundle, false, null, new CompiledLibraryCache(), evaluator.getElm());
+        assertTrue(loaded.estimateRetainedBytes() > estimatedBytes);
+
+        // Debug evaluators count against the bound like any other
+        linkConfig.setCqlDebug(true);
+        cache = newCache(new EvaluatorSnapshotStore((Path) null));
+        cache.get(ID);
+        assertTrue(cache.getEstimatedBytes() > 0);
+    }
+
+    @Test
+    void debugIdleTimeoutTest() throws InterruptedException {
+        linkConfig.setDebugEvaluatorIdleTimeout(Duration.ofMillis(500));
+        cache = newCache(new EvaluatorSnapshotStore((Path) null));
+
+        MeasureEvaluator first = cache.getDebug(ID);
+        assertNotSame(cache.get(ID), first);
+        assertSame(first, cache.getDebug(ID));
+
+        // Unused beyond the idle timeout, the debug evaluator is compiled again
+        Thread.sleep(1000);
+        assertNotSame(first, cache.getDebug(ID));
+    }
+
+    @Test
+    void libraryIndexTest() {
+        // Indexed without compiling, and without reloading the definition on each request
+        LibraryIndex index = cache.getLibraryIndex(ID);
+        assertNotNull(index.resolve("CohortLibraryTrue"));
+        assertSame(index, cache.getLibraryIndex(ID));
+        verify(repository, times(1)).findById(ID);
+        assertEquals(0, cache.getCompilations());
+
+        // Until the measure definition changes
+        cache.refresh(ID, 1);
+        assertNotSame(index, cache.getLibraryIndex(ID));
+    }
+}
@@ -5,6 +5,7 @@ import org.hl7.fhir.r4.model.*;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 
@@ -56,6 +57,62 @@ class MeasureEvaluatorEvaluationTests {
         Assertions.assertEquals(1, getPopulation("initial-population", report).getCount());
     }
 
+    /**
+     * Tests profiling a simple cohort measure.
+     * Validations:
+     * 	•	Each definition is profiled without error.
+     * 	•	The summary lists the initial-population definition.
+     */
+    @Test
+    void simpleCohortMeasureProfileTest() {
+        var evaluator = MeasureEvaluator.compile(fhirContext, KnowledgeArtifactBuilder.SimpleCohortMeasureTrue.bundle(), false);
+        var profile = evaluator.profile(new DateTimeType("2024-01-01"), new DateTimeType("2024-12-31"),
+                new StringType("Patient/simple-patient"), PatientDataBuilder.simplePatientOnlyBundle());
+
+        Assertions.assertFalse(profile.entries().isEmpty());
+        profile.entries().forEach(entry -> Assertions.assertNull(entry.error(), entry.definition()));
+        var parameters = profile.toParameters();
+        Assertions.assertEquals(CqlProfile.ID, parameters.getIdPart());
+        Assertions.assertTrue(parameters.getParameter().stream()
+                .flatMap(parameter -> parameter.getPart().stream())
+                .anyMatch(part -> part.getName().equals("name")
+                        && part.getValue().primitiveValue().equals("Initial Population")));
+    }
+
+    /**
+     * Tests a cohort measure that includes FHIRHelpers and defines a function, compiled from ELM alone.
+     * Validations:
+     * 	•	Both libraries are loaded from ELM rather than translated from CQL.
+     * 	•	The initial-population count is 1.
+     * 	•	The MeasureReport's group matches that of the measure compiled from CQL.
+     */
+    @Test
+    void cohortMeasureWithFHIRHelpersFromElmTest() throws IOException {
+        var measurePackage = KnowledgeArtifactBuilder.CohortMeasureWithFHIRHelpers.bundle();
+        validateMeasurePackage(measurePackage);
+        var translated = MeasureEvaluator.compile(fhirContext, measurePackage, false);
+        var elm = translated.getElm();
+        Assertions.assertEquals(2, elm.size());
+
+        // Strip the CQL so that only the ELM can be compiled
+        var elmOnlyPackage = measurePackage.copy();
+        elmOnlyPackage.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .filter(Library.class::isInstance)
+                .forEach(library -> ((Library) library).setContent(new ArrayList<>()));
+        var loaded = MeasureEvaluator.compile(fhirContext, elmOnlyPackage, false, null, null, elm);
+        Assertions.assertEquals(elm.keySet(), loaded.getLibrariesLoadedFromElm());
+
+        var expected = translated.evaluate(new DateTimeType("2024-01-01"), new DateTimeType("2024-12-31"),
+                new StringType("Patient/simple-patient"), PatientDataBuilder.simplePatientAndEncounterBundle());
+        var actual = loaded.evaluate(new DateTimeType("2024-01-01"), new DateTimeType("2024-12-31"),
+                new StringType("Patient/simple-patient"), PatientDataBuilder.simplePatientAndEncounterBundle());
+
+        // test population results
+        Assertions.assertEquals(1, getPopulation("initial-population", expected).getCount());
+        Assertions.assertTrue(expected.getGroupFirstRep().equalsDeep(actual.getGroupFirstRep()));
+    }
+
     /**
      * Tests a simple cohort measure where the initial-population is expected to evaluate to false (count of 0).
      * Validations:
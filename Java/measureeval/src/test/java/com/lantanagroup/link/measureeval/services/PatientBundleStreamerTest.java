@@ -0,0 +1,110 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.Resource;
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+import com.lantanagroup.link.measureeval.repositories.CompressionDictionaryRepository;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PatientBundleStreamerTest {
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private MongoOperations mongoOperations;
+    private PatientBundleStreamer streamer;
+
+    @BeforeEach
+    void setup() {
+        LinkConfig linkConfig = new LinkConfig();
+        linkConfig.setCompressResources(true);
+        ResourceCompressor resourceCompressor =
+                new ResourceCompressor(fhirContext, mock(CompressionDictionaryRepository.class), linkConfig);
+
+        Patient patient = new Patient();
+        patient.setId("patient1");
+        patient.addName().setFamily("Doe");
+        Document bson = new Document("resourceType", "Patient")
+                .append("resource", Document.parse(fhirContext.newJsonParser().encodeResourceToString(patient)));
+
+        Encounter encounter = new Encounter();
+        encounter.setId("encounter1");
+        encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+        Resource entity = new Resource();
+        resourceCompressor.compress(entity, encounter);
+        Document compressed = new Document("resourceType", "Encounter")
+                .append("compressedResource", new Binary(entity.getCompressedResource()));
+
+        Location location = new Location();
+        location.setId("location1");
+        location.setName("Ward");
+        Document shared = new Document("resourceType", "Location").append("sharedResourceId", "shared1");
+        Document sharedResource = new Document("_id", "shared1")
+                .append("resource", Document.parse(fhirContext.newJsonParser().encodeResourceToString(location))
+                        .append("_class", "org.hl7.fhir.r4.model.Location"));
+
+        mongoOperations = mock(MongoOperations.class);
+        when(mongoOperations.getCollectionName(Resource.class)).thenReturn("resource");
+        when(mongoOperations.getCollectionName(SharedResource.class)).thenReturn("sharedResource");
+        when(mongoOperations.findDistinct(any(Query.class), eq("sharedResourceId"), eq("resource"), eq(String.class)))
+                .thenReturn(List.of("shared1"));
+        when(mongoOperations.find(any(Query.class), eq(Document.class), eq("sharedResource")))
+                .thenReturn(List.of(sharedResource));
+        when(mongoOperations.stream(any(Query.class), eq(Document.class), eq("resource")))
+                .thenAnswer(invocation -> List.of(bson, compressed, shared).stream());
+        streamer = new PatientBundleStreamer(mongoOperations, resourceCompressor);
+    }
+
+    private String write(PatientBundleStreamer.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(3, streamer.write("facility1", "correlation1", format, out));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void bundleTest() throws IOException {
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, write(PatientBundleStreamer.Format.BUNDLE));
+
+        assertEquals(Bundle.BundleType.COLLECTION, bundle.getType());
+        assertEquals(3, bundle.getTotal());
+        assertEquals("Doe", ((Patient) bundle.getEntry().get(0).getResource()).getNameFirstRep().getFamily());
+        assertEquals(Encounter.EncounterStatus.FINISHED,
+                ((Encounter) bundle.getEntry().get(1).getResource()).getStatus());
+        assertEquals("Ward", ((Location) bundle.getEntry().get(2).getResource()).getName());
+    }
+
+    @Test
+    void ndjsonTest() throws IOException {
+        List<String> lines = write(PatientBundleStreamer.Format.NDJSON).lines().toList();
+
+        assertEquals(3, lines.size());
+        assertInstanceOf(Patient.class, fhirContext.newJsonParser().parseResource(lines.get(0)));
+        assertInstanceOf(Encounter.class, fhirContext.newJsonParser().parseResource(lines.get(1)));
+        assertFalse(lines.get(2).contains("_class"));
+    }
+
+    @Test
+    void missingSharedResourceTest() {
+        when(mongoOperations.find(any(Query.class), eq(Document.class), eq("sharedResource"))).thenReturn(List.of());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertThrows(IllegalStateException.class,
+                () -> streamer.write("facility1", "correlation1", PatientBundleStreamer.Format.BUNDLE, out));
+        assertEquals(0, out.size());
+    }
+}
@@ -0,0 +1,167 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.CompressionDictionary;
+import com.lantanagroup.link.measureeval.entities.Resource;
+import com.lantanagroup.link.measureeval.repositories.CompressionDictionaryRepository;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class ResourceCompressorTest {
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private final Map<String, CompressionDictionary> dictionaries = new HashMap<>();
+    private LinkConfig linkConfig;
+    private CompressionDictionaryRepository dictionaryRepository;
+
+    @BeforeEach
+    void setup() {
+        linkConfig = new LinkConfig();
+        linkConfig.setCompressResources(true);
+        linkConfig.setResourceCompressionTrainingSize(DataSize.ofKilobytes(64));
+        linkConfig.setResourceCompressionDictionarySize(DataSize.ofKilobytes(4));
+        dictionaryRepository = mock(CompressionDictionaryRepository.class);
+        when(dictionaryRepository.findFirstByOrderByCreatedDateDesc()).thenReturn(Optional.empty());
+        when(dictionaryRepository.insert(any(CompressionDictionary.class))).thenAnswer(invocation -> {
+            CompressionDictionary dictionary = invocation.getArgument(0);
+            dictionaries.put(dictionary.getId(), dictionary);
+            return dictionary;
+        });
+        when(dictionaryRepository.findById(anyString()))
+                .thenAnswer(invocation -> Optional.ofNullable(dictionaries.get(invocation.<String>getArgument(0))));
+    }
+
+    private static Observation observation(int index) {
+        Observation observation = new Observation();
+        observation.setId("observation-" + index);
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.getCode().addCoding(new Coding("http://loinc.org", "8867-4", "Heart rate"));
+        observation.setSubject(new Reference("Patient/patient-" + index));
+        observation.setValue(new Quantity().setValue(60 + index % 40).setUnit("beats/minute")
+                .setSystem("http://unitsofmeasure.org").setCode("/min"));
+        return observation;
+    }
+
+    private ResourceCompressor newCompressor(Executor trainingExecutor) {
+        return new ResourceCompressor(fhirContext, dictionaryRepository, linkConfig, trainingExecutor);
+    }
+
+    private String encode(IBaseResource resource) {
+        return fhirContext.newJsonParser().encodeResourceToString(resource);
+    }
+
+    @Test
+    void disabledTest() {
+        linkConfig.setCompressResources(false);
+        ResourceCompressor compressor = newCompressor(Runnable::run);
+        Resource entity = new Resource();
+        Observation observation = observation(1);
+
+        compressor.compress(entity, observation);
+
+        assertSame(observation, entity.getResource());
+        assertNull(entity.getCompressedResource());
+        assertSame(observation, compressor.decompress(entity));
+    }
+
+    @Test
+    void roundTripTest() {
+        ResourceCompressor compressor = newCompressor(Runnable::run);
+        Resource entity = new Resource();
+
+        compressor.compress(entity, observation(1));
+
+        assertNull(entity.getResource());
+        assertNotNull(entity.getCompressedResource());
+        assertNull(entity.getCompressionDictionaryId());
+        assertEquals(encode(observation(1)), encode(compressor.decompress(entity)));
+    }
+
+    @Test
+    void dictionaryTrainingTest() {
+        ResourceCompressor compressor = newCompressor(Runnable::run);
+        Resource untrained = new Resource();
+        compressor.compress(untrained, observation(0));
+
+        // Fill the training buffer so that a dictionary is trained
+        int index = 1;
+        while (dictionaries.isEmpty()) {
+            compressor.compress(new Resource(), observation(index++));
+        }
+        Resource trained = new Resource();
+        compressor.compress(trained, observation(index));
+
+        assertNotNull(trained.getCompressionDictionaryId());
+        assertTrue(trained.getCompressedResource().length < untrained.getCompressedResource().length);
+        assertEquals(encode(observation(index)), encode(compressor.decompress(trained)));
+
+        // A new instance (e.g., another replica) decompresses both kinds of document using the stored dictionary
+        ResourceCompressor other = newCompressor(Runnable::run);
+        assertEquals(encode(observation(0)), encode(other.decompress(untrained)));
+        assertEquals(encode(observation(index)), encode(other.decompress(trained)));
+        verify(dictionaryRepository, times(1)).insert(any(CompressionDictionary.class));
+    }
+
+    @Test
+    void concurrentTrainingTest() {
+        // Both replicas find no stored dictionary, so each trains and stores its own
+        ResourceCompressor first = newCompressor(Runnable::run);
+        ResourceCompressor second = newCompressor(Runnable::run);
+        first.compress(new Resource(), observation(0));
+        second.compress(new Resource(), observation(0));
+        int index = 1;
+        while (dictionaries.isEmpty()) {
+            first.compress(new Resource(), observation(index++));
+        }
+        while (dictionaries.size() < 2) {
+            second.compress(new Resource(), observation(index++));
+        }
+        Resource firstTrained = new Resource();
+        first.compress(firstTrained, observation(index));
+        Resource secondTrained = new Resource();
+        second.compress(secondTrained, observation(index));
+
+        // Each replica keeps compressing with its own dictionary, and every replica decompresses with either
+        assertNotNull(firstTrained.getCompressionDictionaryId());
+        assertNotNull(secondTrained.getCompressionDictionaryId());
+        assertNotEquals(firstTrained.getCompressionDictionaryId(), secondTrained.getCompressionDictionaryId());
+        ResourceCompressor other = newCompressor(Runnable::run);
+        for (ResourceCompressor compressor : List.of(first, second, other)) {
+            assertEquals(encode(observation(index)), encode(compressor.decompress(firstTrained)));
+            assertEquals(encode(observation(index)), encode(compressor.decompress(secondTrained)));
+        }
+    }
+
+    @Test
+    void backgroundTrainingTest() {
+        List<Runnable> pending = new ArrayList<>();
+        ResourceCompressor compressor = newCompressor(pending::add);
+        int index = 0;
+        while (pending.isEmpty()) {
+            compressor.compress(new Resource(), observation(index++));
+        }
+
+        // Writers carry on without a dictionary, and without collecting samples, while it is trained
+        Resource untrained = new Resource();
+        compressor.compress(untrained, observation(index));
+        assertNull(untrained.getCompressionDictionaryId());
+        assertEquals(1, pending.size());
+
+        pending.get(0).run();
+        Resource trained = new Resource();
+        compressor.compress(trained, observation(index));
+        assertNotNull(trained.getCompressionDictionaryId());
+        assertEquals(encode(observation(index)), encode(compressor.decompress(trained)));
+    }
+}
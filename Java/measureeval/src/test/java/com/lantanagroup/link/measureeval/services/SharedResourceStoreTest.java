@@ -0,0 +1,161 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.lantanagroup.link.measureeval.configs.LinkConfig;
+import com.lantanagroup.link.measureeval.entities.PatientReportingEvaluationStatus;
+import com.lantanagroup.link.measureeval.entities.Resource;
+import com.lantanagroup.link.measureeval.entities.SharedResource;
+import com.lantanagroup.link.measureeval.repositories.CompressionDictionaryRepository;
+import com.lantanagroup.link.measureeval.repositories.SharedResourceRepository;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class SharedResourceStoreTest {
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private final Map<String, SharedResource> sharedResources = new HashMap<>();
+    private LinkConfig linkConfig;
+    private SharedResourceRepository sharedResourceRepository;
+    private SharedResourceStore store;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setup() {
+        linkConfig = new LinkConfig();
+        linkConfig.setSharedResourceTypes(EnumSet.of(ResourceType.Location));
+        sharedResourceRepository = mock(SharedResourceRepository.class);
+        doAnswer(invocation -> {
+            SharedResource sharedResource = invocation.getArgument(0);
+            sharedResources.putIfAbsent(sharedResource.getId(), sharedResource);
+            return null;
+        }).when(sharedResourceRepository).reference(any(SharedResource.class));
+        when(sharedResourceRepository.findAllById(any())).thenAnswer(invocation -> {
+            List<SharedResource> found = new ArrayList<>();
+            for (String id : (Iterable<String>) invocation.getArgument(0)) {
+                if (sharedResources.containsKey(id)) {
+                    found.add(sharedResources.get(id));
+                }
+            }
+            return found;
+        });
+        ResourceCompressor resourceCompressor =
+                new ResourceCompressor(fhirContext, mock(CompressionDictionaryRepository.class), linkConfig);
+        store = new SharedResourceStore(fhirContext, sharedResourceRepository, resourceCompressor, linkConfig);
+    }
+
+    private static Location location(String name) {
+        Location location = new Location();
+        location.setId("location1");
+        location.setName(name);
+        return location;
+    }
+
+    private Resource entity(String facilityId, String correlationId, org.hl7.fhir.r4.model.Resource resource) {
+        Resource entity = new Resource();
+        entity.setFacilityId(facilityId);
+        entity.setCorrelationId(correlationId);
+        entity.setResourceType(resource.getResourceType());
+        entity.setResourceId(resource.getIdPart());
+        store.store(entity, resource);
+        return entity;
+    }
+
+    @Test
+    void storeTest() {
+        Resource first = entity("facility1", "correlation1", location("Ward"));
+        Resource second = entity("facility1", "correlation2", location("Ward"));
+        Resource changed = entity("facility1", "correlation3", location("Other ward"));
+        Resource otherFacility = entity("facility2", "correlation4", location("Ward"));
+
+        assertNull(first.getResource());
+        assertNotNull(first.getSharedResourceId());
+        assertEquals(first.getSharedResourceId(), second.getSharedResourceId());
+        assertNotEquals(first.getSharedResourceId(), changed.getSharedResourceId());
+        assertNotEquals(first.getSharedResourceId(), otherFacility.getSharedResourceId());
+        assertEquals(3, sharedResources.size());
+    }
+
+    @Test
+    void storeUnsharedTypeTest() {
+        Encounter encounter = new Encounter();
+        encounter.setId("encounter1");
+        Resource entity = entity("facility1", "correlation1", encounter);
+
+        assertSame(encounter, entity.getResource());
+        assertNull(entity.getSharedResourceId());
+        verify(sharedResourceRepository, never()).reference(any());
+    }
+
+    @Test
+    void resolveTest() {
+        Encounter encounter = new Encounter();
+        encounter.setId("encounter1");
+        List<Resource> entities = List.of(
+                entity("facility1", "correlation1", location("Ward")),
+                entity("facility1", "correlation1", encounter));
+
+        List<IBaseResource> first = store.resolve(entities);
+        List<IBaseResource> second = store.resolve(entities);
+
+        assertEquals(List.of("Location", "Encounter"),
+                first.stream().map(resource -> resource.fhirType()).toList());
+        assertEquals("Ward", ((Location) first.get(0)).getName());
+        assertNotSame(first.get(0), second.get(0));
+        verify(sharedResourceRepository, times(1)).findAllById(any());
+    }
+
+    @Test
+    void resolveEvictedTest() {
+        linkConfig.setSharedResourceCacheSize(1);
+        ResourceCompressor resourceCompressor =
+                new ResourceCompressor(fhirContext, mock(CompressionDictionaryRepository.class), linkConfig);
+        store = new SharedResourceStore(fhirContext, sharedResourceRepository, resourceCompressor, linkConfig);
+        List<Resource> entities = List.of(
+                entity("facility1", "correlation1", location("Ward")),
+                entity("facility1", "correlation1", location("Other ward")));
+
+        store.resolve(entities);
+        // Retrieving the first payload evicts the second, which was cached when the call began
+        List<IBaseResource> resolved = store.resolve(entities);
+
+        assertEquals("Ward", ((Location) resolved.get(0)).getName());
+        assertEquals("Other ward", ((Location) resolved.get(1)).getName());
+    }
+
+    @Test
+    void expireAtTest() {
+        PatientReportingEvaluationStatus patientStatus = new PatientReportingEvaluationStatus();
+        patientStatus.setCreatedDate(new Date(1000L));
+        PatientReportingEvaluationStatus.Report report1 = new PatientReportingEvaluationStatus.Report();
+        report1.setEndDate(new Date(5000L));
+        PatientReportingEvaluationStatus.Report report2 = new PatientReportingEvaluationStatus.Report();
+        report2.setEndDate(new Date(3000L));
+        patientStatus.setReports(List.of(report1, report2));
+
+        assertNull(store.getExpireAt(patientStatus));
+        assertFalse(store.isExpired(patientStatus));
+
+        linkConfig.setResourceRetention(Duration.ofSeconds(10));
+        assertEquals(new Date(15000L), store.getExpireAt(patientStatus));
+        assertTrue(store.isExpired(patientStatus));
+
+        patientStatus.setCreatedDate(new Date(8000L));
+        assertEquals(new Date(18000L), store.getExpireAt(patientStatus));
+    }
+
+    @Test
+    void resolveMissingTest() {
+        Resource entity = entity("facility1", "correlation1", location("Ward"));
+        sharedResources.clear();
+
+        assertThrows(IllegalStateException.class, () -> store.resolve(List.of(entity)));
+    }
+}
@@ -0,0 +1,92 @@
+package com.lantanagroup.link.measureeval.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValueSetExpansionCacheTest {
+    private static final String URL = "http://example.com/ValueSet/example";
+
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private final AtomicInteger expansions = new AtomicInteger();
+
+    private static Bundle bundle(String code) {
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl(URL);
+        valueSet.getCompose().addInclude().setSystem("http://example.com").addConcept().setCode(code);
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(valueSet);
+        return bundle;
+    }
+
+    private List<Code> expand(String code) {
+        expansions.incrementAndGet();
+        List<Code> codes = new ArrayList<>();
+        codes.add(new Code().withSystem("http://example.com").withCode(code));
+        return codes;
+    }
+
+    @Test
+    void shareTest() {
+        ValueSetExpansionCache cache = new ValueSetExpansionCache(Long.MAX_VALUE);
+        Map<String, List<Code>> first = cache.viewOf(fhirContext, bundle("a"));
+        Map<String, List<Code>> second = cache.viewOf(fhirContext, bundle("a"));
+        Map<String, List<Code>> changed = cache.viewOf(fhirContext, bundle("b"));
+
+        List<Code> codes = first.computeIfAbsent(URL, key -> expand("a"));
+        assertSame(codes, second.computeIfAbsent(URL, key -> expand("a")));
+        assertEquals("b", changed.computeIfAbsent(URL, key -> expand("b")).get(0).getCode());
+        assertEquals(2, expansions.get());
+        assertEquals(2, cache.getSize());
+        assertThrows(UnsupportedOperationException.class, () -> codes.add(new Code()));
+    }
+
+    @Test
+    void localTest() {
+        ValueSetExpansionCache cache = new ValueSetExpansionCache(Long.MAX_VALUE);
+        Map<String, List<Code>> view = cache.viewOf(fhirContext, new Bundle());
+
+        view.computeIfAbsent(URL, key -> expand("a"));
+        view.computeIfAbsent(URL, key -> expand("a"));
+
+        assertEquals(1, expansions.get());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void compileTest() {
+        ValueSetExpansionCache cache = new ValueSetExpansionCache(Long.MAX_VALUE);
+
+        MeasureEvaluator.compile(fhirContext, KnowledgeArtifactBuilder.CohortMeasureWithValueSetTrue.bundle(), false, cache);
+        MeasureEvaluator.compile(fhirContext, KnowledgeArtifactBuilder.CohortMeasureWithValueSetFalse.bundle(), false, cache);
+
+        // Both measures include the same ValueSet, which is expanded once at compile time
+        assertEquals(1, cache.getSize());
+        assertTrue(cache.getEstimatedBytes() > 0);
+    }
+
+    @Test
+    void evictTest() {
+        long size = ValueSetExpansionCache.estimateBytes(expand("a"));
+        ValueSetExpansionCache cache = new ValueSetExpansionCache(size);
+        Map<String, List<Code>> first = cache.viewOf(fhirContext, bundle("a"));
+        Map<String, List<Code>> second = cache.viewOf(fhirContext, bundle("b"));
+
+        first.computeIfAbsent(URL, key -> expand("a"));
+        second.computeIfAbsent(URL, key -> expand("b"));
+
+        assertEquals(1, cache.getSize());
+        assertEquals(size, cache.getEstimatedBytes());
+        assertNull(first.get(URL));
+        assertNotNull(second.get(URL));
+    }
+}
@@ -0,0 +1,44 @@
+package com.lantanagroup.link.measureeval.utils;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CqlLogAppenderTest {
+    private static ILoggingEvent event(String message) {
+        ILoggingEvent event = mock(ILoggingEvent.class);
+        when(event.getFormattedMessage()).thenReturn(message);
+        when(event.getMDCPropertyMap()).thenReturn(Map.of());
+        return event;
+    }
+
+    @Test
+    void dropTest() {
+        // Not started, so nothing drains the queue
+        CqlLogAppender appender = new CqlLogAppender(libraryId -> null, 2, true);
+        for (int index = 0; index < 5; index++) {
+            appender.append(event("Library.1:1-1:2(1): " + index));
+        }
+
+        assertEquals(3, appender.getDroppedCount());
+    }
+
+    @Test
+    void drainTest() throws InterruptedException {
+        CqlLogAppender appender = new CqlLogAppender(libraryId -> null, 2, true);
+        appender.start();
+        appender.append(event("Library.1:1-1:2(1): 0"));
+        appender.append(event("Library.1:1-1:2(1): 1"));
+        appender.stop();
+
+        // Stopping drains queued events, so there is room again
+        appender.append(event("Library.1:1-1:2(1): 2"));
+        appender.append(event("Library.1:1-1:2(1): 3"));
+        assertEquals(0, appender.getDroppedCount());
+    }
+}
@@ -0,0 +1,47 @@
+package com.lantanagroup.link.measureeval.utils;
+
+import javassist.NotFoundException;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CqlUtilsTest {
+    private static final String CQL = "library Test version '1.0.0'\n"
+            + "define \"First\": 1\n"
+            + "define \"Second\":\n"
+            + "  2 + 3";
+
+    private static Library library() {
+        Library library = new Library();
+        library.addContent().setContentType("text/cql").setData(CQL.getBytes(StandardCharsets.UTF_8));
+        return library;
+    }
+
+    @Test
+    void wholeLibraryTest() throws NotFoundException {
+        assertEquals(CQL, CqlUtils.getCql(library(), null));
+    }
+
+    @Test
+    void singleLineTest() throws NotFoundException {
+        assertEquals("define \"First\": 1", CqlUtils.getCql(library(), "2:1-2:17"));
+        assertEquals("First", CqlUtils.getCql(library(), "2:9-2:13"));
+    }
+
+    @Test
+    void multiLineTest() throws NotFoundException {
+        assertEquals("define \"Second\":\n  2 + 3", CqlUtils.getCql(library(), "3:1-4:7"));
+    }
+
+    @Test
+    void clampTest() throws NotFoundException {
+        // Columns beyond the end of the line stop at the line's end
+        assertEquals("define \"First\": 1", CqlUtils.getCql(library(), "2:1-2:99"));
+        // Lines beyond the end of the library return the whole library
+        assertEquals(CQL, CqlUtils.getCql(library(), "3:1-9:1"));
+        assertEquals(CQL, CqlUtils.getCql(library(), "3:1-2:1"));
+    }
+}
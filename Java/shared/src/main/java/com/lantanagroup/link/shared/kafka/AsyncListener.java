@@ -1,32 +1,207 @@
 package com.lantanagroup.link.shared.kafka;
 
 import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
 import org.springframework.kafka.listener.ConsumerRecordRecoverer;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.kafka.support.KafkaUtils;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-public abstract class AsyncListener<K, V> implements AcknowledgingMessageListener<K, V> {
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+/**
+ * Processes records off the consumer thread.
+ * Records are scheduled fairly by key (the facility ID, for most topics) and by priority; see {@link FairScheduler}.
+ * Listeners may share a scheduler, in which case their records compete for its threads by priority.
+ * Since the container does not poll again until every record from the previous poll has been acknowledged, fairness
+ * only applies among the records of a single poll; register the listener with {@link #getMaxPollRecords()} to bound
+ * how many records a slow one can hold back.
+ * <p>
+ * The listener also tracks its in-flight records by partition. Register it as the container's rebalance listener so
+ * that, when partitions are revoked (including on shutdown), their in-flight records are drained within the drain
+ * timeout and their offsets committed; records still in flight after that are abandoned without acknowledgment.
+ */
+public abstract class AsyncListener<K, V> implements AcknowledgingMessageListener<K, V>, ConsumerAwareRebalanceListener {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncListener.class);
+
+    private final FairScheduler scheduler;
+    private final boolean ownsScheduler;
     private final ConsumerRecordRecoverer recoverer;
+    private final Map<TopicPartition, PartitionState> partitionStates = new ConcurrentHashMap<>();
+    private final Object drainMonitor = new Object();
 
-    protected AsyncListener(ConsumerRecordRecoverer recoverer) {
+    protected AsyncListener(ConsumerRecordRecoverer recoverer, FairScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.ownsScheduler = false;
+        this.recoverer = recoverer;
+    }
+
+    protected AsyncListener(ConsumerRecordRecoverer recoverer, SchedulingSettings schedulingSettings) {
+        this.scheduler = new FairScheduler(getClass().getSimpleName(), schedulingSettings);
+        this.ownsScheduler = true;
         this.recoverer = recoverer;
     }
 
+    protected AsyncListener(ConsumerRecordRecoverer recoverer) {
+        this(recoverer, new SchedulingSettings());
+    }
+
     protected AsyncListener() {
         this(null);
     }
 
+    public Duration getDrainTimeout() {
+        return scheduler.getSettings().getDrainTimeout();
+    }
+
+    public int getMaxPollRecords() {
+        return scheduler.getSettings().getMaxPollRecords();
+    }
+
     @Override
     public void onMessage(ConsumerRecord<K, V> record, Acknowledgment ack) {
-        executor.submit(() -> {
+        PartitionState partitionState = partitionStates.computeIfAbsent(
+                new TopicPartition(record.topic(), record.partition()), PartitionState::new);
+        RecordTask task = new RecordTask(record, ack, partitionState);
+        partitionState.pending.put(record.offset(), task);
+        partitionState.lastOffset = record.offset();
+        scheduler.submit(getSchedulingKey(record), getPriority(record), task);
+    }
+
+    /**
+     * Gets the key by which the record is scheduled; records with the same key are started in the order received.
+     */
+    protected String getSchedulingKey(ConsumerRecord<K, V> record) {
+        return Objects.toString(record.key(), "");
+    }
+
+    /**
+     * Gets the priority with which the record is scheduled.
+     * Records that must be processed in order relative to one another should be given the same priority.
+     */
+    protected Priority getPriority(ConsumerRecord<K, V> record) {
+        return Priority.NORMAL;
+    }
+
+    protected abstract void process(ConsumerRecord<K, V> record) throws Exception;
+
+    /**
+     * Waits for the revoked partitions' in-flight records to finish, then commits their offsets.
+     * This runs on the consumer thread, before the container commits, and only for the revoked partitions; with
+     * cooperative rebalancing, other partitions are unaffected.
+     */
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        List<PartitionState> revoked = partitions.stream()
+                .map(partitionStates::get)
+                .filter(Objects::nonNull)
+                .toList();
+        if (revoked.isEmpty()) {
+            return;
+        }
+        awaitDrain(revoked, System.nanoTime() + getDrainTimeout().toNanos());
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (PartitionState partitionState : revoked) {
+            Map.Entry<Long, RecordTask> firstPending = partitionState.pending.firstEntry();
+            long offset = firstPending == null ? partitionState.lastOffset + 1 : firstPending.getKey();
+            offsets.put(partitionState.partition, new OffsetAndMetadata(offset));
+        }
+        abandon(revoked);
+        try {
+            consumer.commitSync(offsets);
+        } catch (Exception e) {
+            logger.warn("Failed to commit offsets for revoked partitions: {}", offsets, e);
+        }
+    }
+
+    /**
+     * Abandons the lost partitions' in-flight records; their offsets can no longer be committed.
+     */
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        abandon(partitions.stream()
+                .map(partitionStates::get)
+                .filter(Objects::nonNull)
+                .toList());
+    }
+
+    private void awaitDrain(List<PartitionState> partitionStates, long deadline) {
+        synchronized (drainMonitor) {
+            while (partitionStates.stream().anyMatch(partitionState -> !partitionState.pending.isEmpty())) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    drainMonitor.wait(Math.max(1L, remaining / 1_000_000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void abandon(List<PartitionState> revoked) {
+        List<RecordTask> abandoned = new ArrayList<>();
+        for (PartitionState partitionState : revoked) {
+            partitionStates.remove(partitionState.partition, partitionState);
+            for (RecordTask task : partitionState.pending.values()) {
+                task.abandoned = true;
+                abandoned.add(task);
+            }
+        }
+        if (abandoned.isEmpty()) {
+            logger.info("Drained revoked partitions: {}", revoked.stream().map(state -> state.partition).toList());
+            return;
+        }
+        int removed = scheduler.remove(abandoned).size();
+        logger.warn("Abandoned {} queued and {} running records for revoked partitions: {}",
+                removed, abandoned.size() - removed, revoked.stream().map(state -> state.partition).toList());
+    }
+
+    @PreDestroy
+    public void close() {
+        if (ownsScheduler) {
+            scheduler.close();
+        }
+    }
+
+    private class PartitionState {
+        private final TopicPartition partition;
+        private final ConcurrentNavigableMap<Long, RecordTask> pending = new ConcurrentSkipListMap<>();
+        private volatile long lastOffset = -1;
+
+        private PartitionState(TopicPartition partition) {
+            this.partition = partition;
+        }
+    }
+
+    private class RecordTask implements Runnable {
+        private final ConsumerRecord<K, V> record;
+        private final Acknowledgment ack;
+        private final PartitionState partitionState;
+        private volatile boolean abandoned;
+
+        private RecordTask(ConsumerRecord<K, V> record, Acknowledgment ack, PartitionState partitionState) {
+            this.record = record;
+            this.ack = ack;
+            this.partitionState = partitionState;
+        }
+
+        @Override
+        public void run() {
             final String MDC_KEY = "record";
             try {
                 MDC.put(MDC_KEY, KafkaUtils.format(record));
@@ -36,21 +211,16 @@ public abstract class AsyncListener<K, V> implements AcknowledgingMessageListene
                     recoverer.accept(record, e);
                 }
             } finally {
-                ack.acknowledge();
+                // An abandoned record's partition may now belong to another consumer, which will reprocess it
+                if (!abandoned) {
+                    ack.acknowledge();
+                }
+                partitionState.pending.remove(record.offset(), this);
+                synchronized (drainMonitor) {
+                    drainMonitor.notifyAll();
+                }
                 MDC.remove(MDC_KEY);
             }
-        });
-    }
-
-    protected abstract void process(ConsumerRecord<K, V> record) throws Exception;
-
-    @PreDestroy
-    public void close() {
-        executor.shutdownNow();
-        try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         }
     }
 }
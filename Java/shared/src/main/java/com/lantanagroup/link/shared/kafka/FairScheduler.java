@@ -0,0 +1,277 @@
+package com.lantanagroup.link.shared.kafka;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks from per-key queues using deficit round-robin, so that a burst of tasks for one key does not delay
+ * tasks for other keys behind it.
+ * Each turn, a key may run up to its weight in tasks; keys at their in-flight cap are skipped until a task completes.
+ * Tasks are also queued by {@link Priority}: a task runs only when no higher-priority task is runnable, unless it
+ * has waited longer than the aging threshold, in which case the longest-waiting such task runs first.
+ * Tasks with the same key and priority are started in submission order.
+ */
+public class FairScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(FairScheduler.class);
+
+    private final SchedulingSettings settings;
+    private final WaitListener waitListener;
+    private final Map<LaneKey, Lane> lanesByKey = new HashMap<>();
+    private final Map<Priority, Deque<Lane>> readyByPriority = new EnumMap<>(Priority.class);
+    private final Map<String, Integer> inFlightByKey = new HashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private boolean shutdown;
+
+    public FairScheduler(String name, SchedulingSettings settings) {
+        this(name, settings, (priority, waitNanos) -> {
+        });
+    }
+
+    public FairScheduler(String name, SchedulingSettings settings, WaitListener waitListener) {
+        this.settings = settings;
+        this.waitListener = waitListener;
+        for (Priority priority : Priority.values()) {
+            readyByPriority.put(priority, new ArrayDeque<>());
+        }
+        for (int index = 0; index < Math.max(1, settings.getThreads()); index++) {
+            Thread thread = new Thread(this::work, String.format("%s-%d", name, index));
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    public void submit(String key, Runnable task) {
+        submit(key, Priority.NORMAL, task);
+    }
+
+    public synchronized void submit(String key, Priority priority, Runnable task) {
+        if (shutdown) {
+            throw new IllegalStateException("Scheduler is shut down");
+        }
+        Lane lane = lanesByKey.computeIfAbsent(new LaneKey(key, priority), Lane::new);
+        lane.tasks.add(new QueuedTask(task, System.nanoTime()));
+        if (lane.tasks.size() == 1) {
+            readyByPriority.get(priority).addLast(lane);
+        }
+        notify();
+    }
+
+    public SchedulingSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Removes the given tasks from their queues if they have not yet started.
+     *
+     * @return the tasks that were removed
+     */
+    public synchronized Set<Runnable> remove(Collection<? extends Runnable> tasks) {
+        Set<Runnable> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (tasks.isEmpty()) {
+            return removed;
+        }
+        Set<Runnable> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+        candidates.addAll(tasks);
+        for (Iterator<Lane> lanes = lanesByKey.values().iterator(); lanes.hasNext(); ) {
+            Lane lane = lanes.next();
+            lane.tasks.removeIf(queuedTask -> {
+                if (candidates.contains(queuedTask.runnable())) {
+                    removed.add(queuedTask.runnable());
+                    return true;
+                }
+                return false;
+            });
+            if (lane.tasks.isEmpty()) {
+                readyByPriority.get(lane.key.priority()).remove(lane);
+                lanes.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the number of tasks waiting to run, by priority.
+     */
+    public synchronized Map<Priority, Integer> getQueueSizes() {
+        Map<Priority, Integer> queueSizes = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            queueSizes.put(priority, 0);
+        }
+        for (Lane lane : lanesByKey.values()) {
+            queueSizes.merge(lane.key.priority(), lane.tasks.size(), Integer::sum);
+        }
+        return queueSizes;
+    }
+
+    private boolean isRunnable(Lane lane) {
+        return inFlightByKey.getOrDefault(lane.key.key(), 0) < settings.getMaxInFlightPerKey();
+    }
+
+    /**
+     * Gets the runnable lane that has waited longest past the aging threshold, or null if there is none.
+     * Lanes of every priority are considered, so that aged tasks are served oldest first regardless of priority.
+     */
+    private Lane getAgedLane() {
+        long threshold = System.nanoTime() - settings.getPriorityAgingThreshold().toNanos();
+        Lane aged = null;
+        for (Priority priority : Priority.values()) {
+            for (Lane lane : readyByPriority.get(priority)) {
+                long enqueued = lane.tasks.element().enqueued();
+                if (enqueued - threshold < 0 && isRunnable(lane)
+                        && (aged == null || enqueued - aged.tasks.element().enqueued() < 0)) {
+                    aged = lane;
+                }
+            }
+        }
+        return aged;
+    }
+
+    /**
+     * Rotates the ready queue until a runnable lane is at its head, and returns that lane, or null if there is none.
+     */
+    private Lane getRunnableLane(Deque<Lane> ready) {
+        for (int index = 0; index < ready.size(); index++) {
+            Lane lane = ready.peekFirst();
+            if (isRunnable(lane)) {
+                return lane;
+            }
+            ready.addLast(ready.pollFirst());
+        }
+        return null;
+    }
+
+    private synchronized Task take() throws InterruptedException {
+        while (!shutdown) {
+            Lane lane = getAgedLane();
+            if (lane != null) {
+                Deque<Lane> ready = readyByPriority.get(lane.key.priority());
+                ready.remove(lane);
+                ready.addFirst(lane);
+            } else {
+                for (Priority priority : Priority.values()) {
+                    lane = getRunnableLane(readyByPriority.get(priority));
+                    if (lane != null) {
+                        break;
+                    }
+                }
+            }
+            if (lane == null) {
+                wait();
+                continue;
+            }
+            Deque<Lane> ready = readyByPriority.get(lane.key.priority());
+            if (lane.deficit <= 0) {
+                lane.deficit += settings.getWeight(lane.key.key());
+            }
+            lane.deficit--;
+            inFlightByKey.merge(lane.key.key(), 1, Integer::sum);
+            QueuedTask queuedTask = lane.tasks.poll();
+            if (lane.tasks.isEmpty()) {
+                // An idle lane keeps no credit
+                ready.pollFirst();
+                lanesByKey.remove(lane.key);
+            } else if (lane.deficit <= 0) {
+                // The lane has used its turn
+                ready.addLast(ready.pollFirst());
+            }
+            return new Task(lane.key, queuedTask.runnable(), System.nanoTime() - queuedTask.enqueued());
+        }
+        return null;
+    }
+
+    private synchronized void complete(String key) {
+        inFlightByKey.compute(key, (_key, inFlight) -> inFlight == null || inFlight <= 1 ? null : inFlight - 1);
+        notifyAll();
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+            try {
+                waitListener.onStart(task.key().priority(), task.waitNanos());
+                task.runnable().run();
+            } catch (RuntimeException e) {
+                logger.error("Task failed for key {}", task.key().key(), e);
+            } finally {
+                complete(task.key().key());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting tasks, discards queued tasks, and interrupts running tasks.
+     */
+    public void shutdownNow() {
+        synchronized (this) {
+            shutdown = true;
+            lanesByKey.clear();
+            readyByPriority.values().forEach(Deque::clear);
+            notifyAll();
+        }
+        threads.forEach(Thread::interrupt);
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        shutdownNow();
+        try {
+            awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Receives how long each task waited in its queue before starting.
+     */
+    @FunctionalInterface
+    public interface WaitListener {
+        void onStart(Priority priority, long waitNanos);
+    }
+
+    private record LaneKey(String key, Priority priority) {
+    }
+
+    private static class Lane {
+        private final LaneKey key;
+        private final Queue<QueuedTask> tasks = new ArrayDeque<>();
+        private int deficit;
+
+        private Lane(LaneKey key) {
+            this.key = key;
+        }
+    }
+
+    private record QueuedTask(Runnable runnable, long enqueued) {
+    }
+
+    private record Task(LaneKey key, Runnable runnable, long waitNanos) {
+    }
+}
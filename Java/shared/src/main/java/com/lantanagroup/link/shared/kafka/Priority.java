@@ -0,0 +1,10 @@
+package com.lantanagroup.link.shared.kafka;
+
+/**
+ * The priority with which a {@link FairScheduler} runs a task, from highest to lowest.
+ */
+public enum Priority {
+    HIGH,
+    NORMAL,
+    LOW
+}
@@ -0,0 +1,61 @@
+package com.lantanagroup.link.shared.kafka;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings for the {@link FairScheduler} behind an {@link AsyncListener}.
+ * The defaults (one thread, one in-flight record per key) process records one at a time, as a single-threaded
+ * executor would, but interleave keys rather than serving them in arrival order.
+ */
+@Getter
+@Setter
+public class SchedulingSettings {
+    /**
+     * The number of threads processing records.
+     */
+    private int threads = 1;
+
+    /**
+     * The maximum number of records with the same key processed at once.
+     * Values greater than one allow records with the same key to be processed out of order.
+     */
+    private int maxInFlightPerKey = 1;
+
+    /**
+     * The maximum number of records fetched per poll.
+     * Records are acknowledged asynchronously, and the container does not poll again until every record from the
+     * previous poll has been acknowledged, so records are only scheduled fairly among those of a single poll; a slow
+     * record delays the next poll until it finishes.
+     */
+    private int maxPollRecords = 100;
+
+    /**
+     * How long a record may wait behind higher-priority records before it is served ahead of them.
+     */
+    private Duration priorityAgingThreshold = Duration.ofSeconds(30);
+
+    /**
+     * How long to wait, when partitions are revoked, for their in-flight records to finish before abandoning them.
+     * Abandoned records are not acknowledged, so they are redelivered to the partitions' new owner.
+     */
+    private Duration drainTimeout = Duration.ofSeconds(10);
+
+    /**
+     * The number of records served per turn for keys without an explicit weight.
+     */
+    private int defaultWeight = 1;
+
+    /**
+     * The number of records served per turn, by key.
+     */
+    private Map<String, Integer> weights = new HashMap<>();
+
+    public int getWeight(String key) {
+        return Math.max(1, weights.getOrDefault(key, defaultWeight));
+    }
+}
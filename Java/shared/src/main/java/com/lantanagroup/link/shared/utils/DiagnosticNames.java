@@ -2,6 +2,8 @@ package com.lantanagroup.link.shared.utils;
 
 public class DiagnosticNames {
     public static final String CORRELATION_ID = "correlation.id";
+    public static final String CQL_DEFINITION = "cql.definition";
+    public static final String CQL_LIBRARY = "cql.library";
     public static final String FACILITY_ID = "facility.id";
     public static final String FREQUENCY = "frequency";
     public static final String ISSUE_COUNT_ACCEPTABLE = "issue.count.acceptable";
@@ -11,9 +13,11 @@ public class DiagnosticNames {
     public static final String PATIENT_ID = "patient.id";
     public static final String PERIOD_END = "period.end";
     public static final String PERIOD_START = "period.start";
+    public static final String PRIORITY = "priority";
     public static final String QUERY_TYPE = "query.type";
     public static final String REPORT_ID = "report.id";
     public static final String REPORT_TYPE = "report.types";
     public static final String RESOURCE_COUNT = "resource.count";
+    public static final String STAGE = "stage";
     public static final String VALIDATION_OUTCOME = "validation.outcome";
 }
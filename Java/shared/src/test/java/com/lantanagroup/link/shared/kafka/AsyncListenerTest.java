@@ -0,0 +1,105 @@
+package com.lantanagroup.link.shared.kafka;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class AsyncListenerTest {
+    private static final String TOPIC = "topic";
+
+    private final Set<Long> processed = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private TestListener listener;
+
+    @AfterEach
+    void teardown() {
+        release.countDown();
+        listener.close();
+    }
+
+    private TestListener listener(Duration drainTimeout) {
+        SchedulingSettings settings = new SchedulingSettings();
+        settings.setThreads(2);
+        settings.setDrainTimeout(drainTimeout);
+        return new TestListener(settings);
+    }
+
+    private static ConsumerRecord<String, String> record(int partition, long offset, String key) {
+        return new ConsumerRecord<>(TOPIC, partition, offset, key, "value");
+    }
+
+    @Test
+    void drainTest() throws InterruptedException {
+        listener = listener(Duration.ofSeconds(5));
+        Acknowledgment ack = mock(Acknowledgment.class);
+        listener.onMessage(record(0, 10, "blocked"), ack);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        listener.onMessage(record(0, 11, "facility"), ack);
+        listener.onMessage(record(1, 20, "other"), ack);
+        Consumer<?, ?> consumer = mock(Consumer.class);
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        }).start();
+        listener.onPartitionsRevokedBeforeCommit(consumer, List.of(new TopicPartition(TOPIC, 0)));
+
+        assertTrue(processed.containsAll(Set.of(10L, 11L)));
+        verify(consumer).commitSync(Map.of(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(12)));
+    }
+
+    @Test
+    void abandonTest() throws InterruptedException {
+        listener = listener(Duration.ofMillis(100));
+        Acknowledgment blockedAck = mock(Acknowledgment.class);
+        Acknowledgment queuedAck = mock(Acknowledgment.class);
+        listener.onMessage(record(0, 10, "facility"), blockedAck);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        listener.onMessage(record(0, 11, "facility"), queuedAck);
+        Consumer<?, ?> consumer = mock(Consumer.class);
+
+        listener.onPartitionsRevokedBeforeCommit(consumer, List.of(new TopicPartition(TOPIC, 0)));
+        release.countDown();
+        listener.close();
+
+        // Neither record completed in time, so neither is committed; the queued record never runs
+        verify(consumer).commitSync(Map.of(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(10)));
+        assertFalse(processed.contains(11L));
+        verifyNoInteractions(blockedAck, queuedAck);
+    }
+
+    private class TestListener extends AsyncListener<String, String> {
+        private TestListener(SchedulingSettings settings) {
+            super(null, settings);
+        }
+
+        @Override
+        protected void process(ConsumerRecord<String, String> record) throws InterruptedException {
+            if (record.offset() == 10) {
+                started.countDown();
+                release.await();
+            }
+            processed.add(record.offset());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.lantanagroup.link.shared.kafka;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairSchedulerTest {
+    private FairScheduler scheduler;
+
+    @AfterEach
+    void teardown() throws InterruptedException {
+        scheduler.shutdownNow();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Blocks the scheduler's only thread on a task for the first key, submits the given tasks, then releases it.
+     */
+    private List<String> run(SchedulingSettings settings, String... keys) throws InterruptedException {
+        return run(settings, Arrays.stream(keys).map(key -> new Submission(key, Priority.NORMAL)).toList());
+    }
+
+    private List<String> run(SchedulingSettings settings, List<Submission> submissions) throws InterruptedException {
+        scheduler = new FairScheduler("test", settings);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(submissions.size() + 1);
+        String first = submissions.get(0).key();
+        scheduler.submit(first, () -> {
+            order.add(first);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (Submission submission : submissions) {
+            scheduler.submit(submission.key(), submission.priority(), () -> {
+                order.add(submission.key());
+                done.countDown();
+            });
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return order;
+    }
+
+    @Test
+    void roundRobinTest() throws InterruptedException {
+        List<String> order = run(new SchedulingSettings(), "big", "big", "big", "big", "small", "small");
+
+        assertEquals(List.of("big", "big", "small", "big", "small", "big", "big"), order);
+    }
+
+    @Test
+    void weightedTest() throws InterruptedException {
+        SchedulingSettings settings = new SchedulingSettings();
+        settings.setWeights(Map.of("big", 2));
+        List<String> order = run(settings, "big", "big", "big", "big", "small", "small", "small");
+
+        assertEquals(List.of("big", "big", "big", "small", "big", "big", "small", "small"), order);
+    }
+
+    @Test
+    void priorityTest() throws InterruptedException {
+        List<String> order = run(new SchedulingSettings(), List.of(
+                new Submission("adhoc", Priority.LOW),
+                new Submission("supplemental", Priority.NORMAL),
+                new Submission("initial", Priority.HIGH),
+                new Submission("adhoc", Priority.LOW),
+                new Submission("initial", Priority.HIGH)));
+
+        assertEquals(List.of("adhoc", "initial", "initial", "supplemental", "adhoc", "adhoc"), order);
+    }
+
+    @Test
+    void agingTest() throws InterruptedException {
+        SchedulingSettings settings = new SchedulingSettings();
+        settings.setPriorityAgingThreshold(Duration.ZERO);
+        List<String> order = run(settings, List.of(
+                new Submission("adhoc", Priority.LOW),
+                new Submission("initial", Priority.HIGH),
+                new Submission("supplemental", Priority.NORMAL)));
+
+        assertEquals(List.of("adhoc", "adhoc", "initial", "supplemental"), order);
+    }
+
+    @Test
+    void maxInFlightPerKeyTest() throws InterruptedException {
+        SchedulingSettings settings = new SchedulingSettings();
+        settings.setThreads(4);
+        scheduler = new FairScheduler("test", settings);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+        for (int index = 0; index < 20; index++) {
+            scheduler.submit("facility", () -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxInFlight.get());
+        assertTrue(scheduler.getQueueSizes().values().stream().allMatch(size -> size == 0));
+    }
+
+    @Test
+    void failedTaskTest() throws InterruptedException {
+        scheduler = new FairScheduler("test", new SchedulingSettings());
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit("facility", () -> {
+            throw new IllegalStateException();
+        });
+        scheduler.submit("facility", done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private record Submission(String key, Priority priority) {
+    }
+}
@@ -10,6 +10,8 @@ import com.lantanagroup.link.validation.services.ReadyForValidationConsumer;
 import io.opentelemetry.instrumentation.kafkaclients.v2_6.TracingConsumerInterceptor;
 import io.opentelemetry.instrumentation.kafkaclients.v2_6.TracingProducerInterceptor;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.CooperativeStickyAssignor;
+import org.apache.kafka.clients.consumer.RangeAssignor;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.*;
@@ -24,6 +26,7 @@ import org.springframework.kafka.listener.*;
 import org.springframework.kafka.support.serializer.*;
 import org.springframework.util.backoff.FixedBackOff;
 
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -75,6 +78,11 @@ public class KafkaConfig {
             Deserializer<?> valueDeserializer) {
         Map<String, Object> consumerProperties = properties.buildConsumerProperties(sslBundles.getIfAvailable());
         consumerProperties.put(ConsumerConfig.INTERCEPTOR_CLASSES_CONFIG, TracingConsumerInterceptor.class.getName());
+        // Cooperative rebalancing revokes only the partitions that move; the eager fallback allows rolling upgrades
+        // from eager-only instances, and can be removed via configuration once none remain
+        consumerProperties.putIfAbsent(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, List.of(
+                CooperativeStickyAssignor.class.getName(),
+                RangeAssignor.class.getName()));
         return new DefaultKafkaConsumerFactory<>(consumerProperties, keyDeserializer, valueDeserializer);
     }
 
@@ -154,7 +162,14 @@ public class KafkaConfig {
         ContainerProperties containerProperties = container.getContainerProperties();
         containerProperties.setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
         containerProperties.setAsyncAcks(true);
+        // The container waits for every record from a poll to be acknowledged before polling again
+        java.util.Properties consumerProperties = new java.util.Properties();
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, listener.getMaxPollRecords());
+        containerProperties.setKafkaConsumerProperties(consumerProperties);
         containerProperties.setMessageListener(listener);
+        containerProperties.setConsumerRebalanceListener(listener);
+        // Allow revoked partitions to drain before the container gives up on stopping its consumer
+        containerProperties.setShutdownTimeout(listener.getDrainTimeout().plusSeconds(5).toMillis());
         return container;
     }
 }
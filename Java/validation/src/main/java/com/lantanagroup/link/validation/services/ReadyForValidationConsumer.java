@@ -27,6 +27,7 @@ import org.springframework.stereotype.Service;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 @Service
@@ -62,6 +63,11 @@ public class ReadyForValidationConsumer extends AsyncListener<ReadyForValidation
         this.blobStorageService = blobStorageService.orElse(null);
     }
 
+    @Override
+    protected String getSchedulingKey(ConsumerRecord<ReadyForValidation.Key, ReadyForValidation> record) {
+        return record.key() == null ? "" : Objects.toString(record.key().getFacilityId(), "");
+    }
+
     @Override
     protected void process(ConsumerRecord<ReadyForValidation.Key, ReadyForValidation> record) {
         String correlationId = Headers.getCorrelationId(record.headers());